@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the path MTU search against a UDP echo server on the loopback interface, whose MTU is far
+ * larger than any size probed, so the server alone decides which probes get through.
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class PathMtuProberTest {
+    /* The IPv4 and UDP headers that each probe carries on top of its payload. */
+    private static final int HEADER_LENGTH = 20 + 8;
+    private static final int MAX_MTU = 1500;
+    private static final int SEARCH_STEP = 8;
+
+    private final PathMtuProber prober = new PathMtuProber(Runnable::run);
+    private EchoServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void probeConfirmsEveryEchoedSize() throws IOException {
+        server = new EchoServer(Integer.MAX_VALUE);
+        assertEquals(MAX_MTU, prober.probe(server.getAddress(), null));
+    }
+
+    @Test
+    public void probeStopsBelowDroppedSizes() throws IOException {
+        server = new EchoServer(1400);
+        final int mtu = prober.probe(server.getAddress(), null);
+        assertTrue("Found " + mtu, mtu <= 1400 && mtu > 1400 - SEARCH_STEP);
+    }
+
+    @Test
+    public void probeTreatsPortUnreachableAsDelivered() throws IOException {
+        final InetSocketAddress closed;
+        try (final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            closed = new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+        }
+        assertEquals(MAX_MTU, prober.probe(closed, null));
+    }
+
+    @Test
+    public void probeReusesCachedResult() throws IOException {
+        server = new EchoServer(1400);
+        final int mtu = prober.probe(server.getAddress(), null);
+        server.close();
+        // Nothing answers any more, so only the cache can still give the same answer.
+        assertEquals(mtu, prober.probe(server.getAddress(), null));
+    }
+
+    /*
+     * Echoes every datagram that makes an IP packet no larger than a limit, and drops the rest as
+     * a router on a narrower link would.
+     */
+    private static final class EchoServer extends Thread {
+        private final int limit;
+        private final DatagramSocket socket;
+
+        EchoServer(final int limit) throws SocketException {
+            super("PathMtuProberTest/EchoServer");
+            this.limit = limit;
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            start();
+        }
+
+        void close() {
+            socket.close();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[MAX_MTU];
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    if (packet.getLength() + HEADER_LENGTH <= limit)
+                        socket.send(packet);
+                }
+            } catch (final IOException ignored) {
+                // The socket was closed.
+            }
+        }
+    }
+}
@@ -8,7 +8,6 @@ package com.wireguard.android;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
@@ -22,21 +21,28 @@ import com.wireguard.android.backend.WgQuickBackend;
 import com.wireguard.android.configStore.FileConfigStore;
 import com.wireguard.android.model.TunnelManager;
 import com.wireguard.android.util.AsyncWorker;
+import com.wireguard.android.util.LatencyTrace;
 import com.wireguard.android.util.RootShell;
+import com.wireguard.android.util.StartupTrace;
 import com.wireguard.android.util.ToolsInstaller;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import java9.util.concurrent.CompletableFuture;
 
 public class Application extends android.app.Application {
+    private static final int WORKER_THREADS = 4;
     @SuppressWarnings("NullableProblems") private static WeakReference<Application> weakSelf;
     private final CompletableFuture<Backend> futureBackend = new CompletableFuture<>();
     @SuppressWarnings("NullableProblems") private AsyncWorker asyncWorker;
     @Nullable private Backend backend;
+    private final LatencyTrace latencyTrace = new LatencyTrace();
     @SuppressWarnings("NullableProblems") private RootShell rootShell;
     @SuppressWarnings("NullableProblems") private SharedPreferences sharedPreferences;
+    private final StartupTrace startupTrace = new StartupTrace();
     @SuppressWarnings("NullableProblems") private ToolsInstaller toolsInstaller;
     @SuppressWarnings("NullableProblems") private TunnelManager tunnelManager;
 
@@ -56,17 +62,19 @@ public class Application extends android.app.Application {
         final Application app = get();
         synchronized (app.futureBackend) {
             if (app.backend == null) {
-                Backend backend = null;
-                if (new File("/sys/module/wireguard").exists()) {
-                    try {
-                        app.rootShell.start();
-                        backend = new WgQuickBackend(app.getApplicationContext());
-                    } catch (final Exception ignored) {
+                try (final StartupTrace.Section ignored = app.startupTrace.begin("Backend detection")) {
+                    Backend backend = null;
+                    if (new File("/sys/module/wireguard").exists()) {
+                        // The root shell is only started if ToolsInstaller needs it.
+                        try (final StartupTrace.Section ignored2 = app.startupTrace.begin("RootHelper.start")) {
+                            backend = new WgQuickBackend(app.getApplicationContext());
+                        } catch (final Exception ignored2) {
+                        }
                     }
+                    if (backend == null)
+                        backend = new GoBackend(app.getApplicationContext());
+                    app.backend = backend;
                 }
-                if (backend == null)
-                    backend = new GoBackend(app.getApplicationContext());
-                app.backend = backend;
             }
             return app.backend;
         }
@@ -76,6 +84,10 @@ public class Application extends android.app.Application {
         return get().futureBackend;
     }
 
+    public static LatencyTrace getLatencyTrace() {
+        return get().latencyTrace;
+    }
+
     public static RootShell getRootShell() {
         return get().rootShell;
     }
@@ -84,6 +96,10 @@ public class Application extends android.app.Application {
         return get().sharedPreferences;
     }
 
+    public static StartupTrace getStartupTrace() {
+        return get().startupTrace;
+    }
+
     public static ToolsInstaller getToolsInstaller() {
         return get().toolsInstaller;
     }
@@ -110,18 +126,43 @@ public class Application extends android.app.Application {
     public void onCreate() {
         super.onCreate();
 
-        asyncWorker = new AsyncWorker(AsyncTask.SERIAL_EXECUTOR, new Handler(Looper.getMainLooper()));
-        rootShell = new RootShell(getApplicationContext());
-        toolsInstaller = new ToolsInstaller(getApplicationContext());
+        try (final StartupTrace.Section ignored = startupTrace.begin("Application.onCreate")) {
+            final ExecutorService executor = Executors.newFixedThreadPool(WORKER_THREADS);
+            asyncWorker = new AsyncWorker(executor, new Handler(Looper.getMainLooper()));
+            rootShell = new RootShell(getApplicationContext());
+            toolsInstaller = new ToolsInstaller(getApplicationContext());
+
+            /* Start backend detection first: on rooted devices it spawns the root helper, which is
+             * the slowest part of startup. Config and backend enumeration overlap with it.
+             */
+            asyncWorker.supplyAsync(Application::getBackend).thenAccept(futureBackend::complete);
+
+            try (final StartupTrace.Section ignored2 = startupTrace.begin("SharedPreferences")) {
+                sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+                AppCompatDelegate.setDefaultNightMode(
+                        sharedPreferences.getBoolean("dark_theme", false) ?
+                                AppCompatDelegate.MODE_NIGHT_YES : AppCompatDelegate.MODE_NIGHT_NO);
+            }
 
-        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        AppCompatDelegate.setDefaultNightMode(
-                sharedPreferences.getBoolean("dark_theme", false) ?
-                        AppCompatDelegate.MODE_NIGHT_YES : AppCompatDelegate.MODE_NIGHT_NO);
+            tunnelManager = new TunnelManager(new FileConfigStore(getApplicationContext()));
+            tunnelManager.onCreate();
+        }
+    }
 
-        tunnelManager = new TunnelManager(new FileConfigStore(getApplicationContext()));
-        tunnelManager.onCreate();
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        tunnelManager.cancelConfigPreload();
+    }
 
-        asyncWorker.supplyAsync(Application::getBackend).thenAccept(futureBackend::complete);
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        // Preloading only helps an interactive user, so stop it under pressure or once hidden.
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            tunnelManager.cancelConfigPreload();
+        // The process may be killed without further notice once it is in the background.
+        if (level >= TRIM_MEMORY_UI_HIDDEN)
+            tunnelManager.saveState(false);
     }
 }
@@ -31,7 +31,7 @@ public class BootShutdownReceiver extends BroadcastReceiver {
                 tunnelManager.restoreState(false).whenComplete(ExceptionLoggers.D);
             } else if (Intent.ACTION_SHUTDOWN.equals(action)) {
                 Log.i(TAG, "Broadcast receiver saving state (shutdown)");
-                tunnelManager.saveState();
+                tunnelManager.saveState(true);
             }
         });
     }
@@ -18,6 +18,7 @@ import android.view.MenuItem;
 
 import com.wireguard.android.Application;
 import com.wireguard.android.R;
+import com.wireguard.android.backend.GoBackend;
 import com.wireguard.android.backend.WgQuickBackend;
 
 import java.util.ArrayList;
@@ -95,8 +96,13 @@ public class SettingsActivity extends ThemeChangeAwareActivity {
                     getPreferenceManager().findPreference("tools_installer"),
                     getPreferenceManager().findPreference("restore_on_boot")
             };
+            final Preference goOnlyPrefs[] = {
+                    getPreferenceManager().findPreference(GoBackend.KEY_DATAPATH_PROFILE)
+            };
             for (final Preference pref : wgQuickOnlyPrefs)
                 pref.setVisible(false);
+            for (final Preference pref : goOnlyPrefs)
+                pref.setVisible(false);
             final PreferenceScreen screen = getPreferenceScreen();
             Application.getBackendAsync().thenAccept(backend -> {
                 for (final Preference pref : wgQuickOnlyPrefs) {
@@ -105,6 +111,12 @@ public class SettingsActivity extends ThemeChangeAwareActivity {
                     else
                         screen.removePreference(pref);
                 }
+                for (final Preference pref : goOnlyPrefs) {
+                    if (backend instanceof GoBackend)
+                        pref.setVisible(true);
+                    else
+                        screen.removePreference(pref);
+                }
             });
         }
     }
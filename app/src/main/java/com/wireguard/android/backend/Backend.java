@@ -10,6 +10,8 @@ import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
 import com.wireguard.config.Config;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -52,6 +54,15 @@ public interface Backend {
      */
     Statistics getStatistics(Tunnel tunnel) throws Exception;
 
+    /**
+     * Get statistics for several tunnels at once. Backends should gather them with as little
+     * overhead as possible, rather than querying each tunnel separately.
+     *
+     * @param tunnels The tunnels to retrieve statistics for.
+     * @return The statistics for each of the given tunnels.
+     */
+    Map<Tunnel, Statistics> getStatistics(Collection<Tunnel> tunnels) throws Exception;
+
     /**
      * Determine type name of underlying backend.
      *
@@ -76,4 +87,16 @@ public interface Backend {
      * @return The updated state of the tunnel.
      */
     State setState(Tunnel tunnel, State state) throws Exception;
+
+    /**
+     * Set the states of several tunnels at once. Backends should make the changes with as little
+     * overhead as possible, rather than handling each tunnel separately. A failure to change one
+     * tunnel does not prevent changes to the others; callers should compare the returned states
+     * with those requested.
+     *
+     * @param states The new state for each tunnel. Each must be {@code UP}, {@code DOWN}, or
+     *               {@code TOGGLE}.
+     * @return The updated state of each of the given tunnels.
+     */
+    Map<Tunnel, State> setStates(Map<Tunnel, State> states) throws Exception;
 }
@@ -11,55 +11,137 @@ import android.content.Intent;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.Nullable;
 import android.support.v4.util.ArraySet;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.wireguard.android.Application;
+import com.wireguard.android.BuildConfig;
 import com.wireguard.android.R;
 import com.wireguard.android.activity.MainActivity;
 import com.wireguard.android.model.Tunnel;
+import com.wireguard.android.model.Tunnel.PeerStatistics;
 import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
 import com.wireguard.android.util.ExceptionLoggers;
+import com.wireguard.android.util.LatencyTrace;
 import com.wireguard.android.util.SharedLibraryLoader;
 import com.wireguard.config.Config;
+import com.wireguard.config.InetEndpoint;
 import com.wireguard.config.InetNetwork;
 import com.wireguard.config.Peer;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import java9.util.Optional;
 import java9.util.concurrent.CompletableFuture;
 
 public final class GoBackend implements Backend {
+    public static final String KEY_DATAPATH_PROFILE = "datapath_profile";
+    public static final int PROFILE_BALANCED = 1;
+    public static final int PROFILE_HIGH_THROUGHPUT = 2;
+    public static final int PROFILE_LOW_MEMORY = 0;
+    /* Until this long after tunnel-up, a peer's latest handshake is still its first; rekeys take minutes. */
+    private static final long FIRST_HANDSHAKE_WINDOW_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int LOG_BUFFER_SIZE = 64 * 1024;
+    private static final int PIPELINE_THREADS = 4;
+    private static final int PROBE_THREADS = 4;
     private static final String TAG = "WireGuard/" + GoBackend.class.getSimpleName();
     private static CompletableFuture<VpnService> vpnService = new CompletableFuture<>();
 
     private final Context context;
-    @Nullable private Tunnel currentTunnel;
-    private int currentTunnelHandle = -1;
+    private final PathMtuProber mtuProber;
+    /* Runs the steps of tunnel-up that don't depend on one another; idle threads exit. */
+    private final ThreadPoolExecutor pipeline = new ThreadPoolExecutor(PIPELINE_THREADS, PIPELINE_THREADS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    /*
+     * Runs path MTU probes. Planning the interface waits for them on a pipeline thread, so they
+     * must not queue behind the endpoint lookups there.
+     */
+    private final ThreadPoolExecutor probes = new ThreadPoolExecutor(PROBE_THREADS, PROBE_THREADS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    /* Running tunnels, in the order they were brought up. */
+    private final Map<Tunnel, RunningTunnel> runningTunnels = new LinkedHashMap<>();
+    /* Reused for every statistics poll, and grown when a tunnel has more peers than fit. */
+    private ByteBuffer statisticsBuffer = ByteBuffer.allocateDirect(16 * UapiBinaryCodec.STATISTICS_RECORD_SIZE);
 
     public GoBackend(final Context context) {
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
+        wgSetLogLevel(BuildConfig.DEBUG ? Log.DEBUG : Log.INFO);
+        pipeline.allowCoreThreadTimeOut(true);
+        probes.allowCoreThreadTimeOut(true);
+        mtuProber = new PathMtuProber(probes);
         this.context = context;
     }
 
+    /*
+     * Wait for a step of tunnel-up, and rethrow its failure as it was thrown.
+     */
+    private static <T> T await(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    /*
+     * Map the profile chosen in the settings to the value wgTurnOn() understands.
+     */
+    private static int getDatapathProfile() {
+        final String profile = Application.getSharedPreferences().getString(KEY_DATAPATH_PROFILE, "balanced");
+        if ("low_memory".equals(profile))
+            return PROFILE_LOW_MEMORY;
+        if ("high_throughput".equals(profile))
+            return PROFILE_HIGH_THROUGHPUT;
+        return PROFILE_BALANCED;
+    }
+
+    private static native int wgGetStatistics(int handle, ByteBuffer buffer);
+
     private static native int wgGetSocketV4(int handle);
 
     private static native int wgGetSocketV6(int handle);
 
+    private static native int wgReadLog(long cursor, byte[] buffer);
+
+    private static native int wgReplaceTun(int tunFd);
+
+    private static native void wgSetLogLevel(int level);
+
     private static native void wgTurnOff(int handle);
 
-    private static native int wgTurnOn(String ifName, int tunFd, String settings);
+    private static native int wgTurnOn(String ifName, int tunFd, ByteBuffer config, int configLength, int profile);
 
     private static native String wgVersion();
 
     @Override
-    public Config applyConfig(final Tunnel tunnel, final Config config) throws Exception {
+    public synchronized Config applyConfig(final Tunnel tunnel, final Config config) throws Exception {
         if (tunnel.getState() == State.UP) {
             // Restart the tunnel to apply the new config.
             setStateInternal(tunnel, tunnel.getConfig(), State.DOWN);
@@ -74,24 +156,111 @@ public final class GoBackend implements Backend {
         return config;
     }
 
-    @Override
-    public Set<String> enumerate() {
-        if (currentTunnel != null) {
-            final Set<String> runningTunnels = new ArraySet<>();
-            runningTunnels.add(currentTunnel.getName());
-            return runningTunnels;
+    /**
+     * Format the messages still held in wireguard-go's log ring like logcat's threadtime output.
+     * The ring is read in batches and is left intact.
+     */
+    public String dumpLog() {
+        final StringBuilder builder = new StringBuilder("wireguard-go log:\n");
+        final DateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        final byte[] buffer = new byte[LOG_BUFFER_SIZE];
+        long cursor = 0;
+        int length;
+        while ((length = wgReadLog(cursor, buffer)) > 0) {
+            final ByteBuffer records = ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+            while (records.hasRemaining()) {
+                final long ticket = records.getLong();
+                final long time = records.getLong();
+                final int level = records.get();
+                final int nameLength = records.get() & 0xff;
+                final int messageLength = records.getShort() & 0xffff;
+                final String name = new String(buffer, records.position(), nameLength, StandardCharsets.UTF_8);
+                final String message = new String(buffer, records.position() + nameLength, messageLength, StandardCharsets.UTF_8);
+                records.position(records.position() + nameLength + messageLength);
+                if (ticket > cursor && cursor > 0)
+                    builder.append(String.format(Locale.US, "(%d messages lost)\n", ticket - cursor));
+                builder.append(dateFormat.format(new Date(time / 1000000)))
+                        .append(' ').append(level >= Log.ERROR ? 'E' : level >= Log.INFO ? 'I' : 'D')
+                        .append(" WireGuard/GoBackend/").append(name).append(": ").append(message).append('\n');
+                cursor = ticket + 1;
+            }
+        }
+        return builder.toString();
+    }
+
+    /*
+     * Create a VPN interface from a plan. The caller owns the returned descriptor.
+     */
+    private ParcelFileDescriptor establish(final VpnService service, final InterfacePlan plan) throws Exception {
+        final VpnService.Builder builder = service.getBuilder();
+        builder.setSession(plan.session);
+
+        final Intent configureIntent = new Intent(context, MainActivity.class);
+        configureIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        builder.setConfigureIntent(PendingIntent.getActivity(context, 0, configureIntent, 0));
+
+        for (final InetNetwork addr : plan.addresses)
+            builder.addAddress(addr.getAddress(), addr.getMask());
+        for (final InetNetwork addr : plan.routes)
+            builder.addRoute(addr.getAddress(), addr.getMask());
+        for (final String excludedApplication : plan.excludedApplications)
+            builder.addDisallowedApplication(excludedApplication);
+        for (final InetAddress addr : plan.dnsServers)
+            builder.addDnsServer(addr.getHostAddress());
+        builder.setMtu(plan.mtu);
+
+        builder.setBlocking(true);
+        final ParcelFileDescriptor tun;
+        try (final LatencyTrace.Section ignored = Application.getLatencyTrace().begin("GoBackend establish: VpnService.Builder.establish")) {
+            tun = builder.establish();
         }
-        return Collections.emptySet();
+        if (tun == null)
+            throw new Exception(context.getResources().getString(R.string.tun_create_error));
+        return tun;
+    }
+
+    @Override
+    public synchronized Set<String> enumerate() {
+        if (runningTunnels.isEmpty())
+            return Collections.emptySet();
+        final Set<String> names = new ArraySet<>(runningTunnels.size());
+        for (final Tunnel tunnel : runningTunnels.keySet())
+            names.add(tunnel.getName());
+        return names;
     }
 
     @Override
-    public State getState(final Tunnel tunnel) {
-        return currentTunnel == tunnel ? State.UP : State.DOWN;
+    public synchronized State getState(final Tunnel tunnel) {
+        return State.of(runningTunnels.containsKey(tunnel));
     }
 
     @Override
-    public Statistics getStatistics(final Tunnel tunnel) {
-        return new Statistics();
+    public synchronized Statistics getStatistics(final Tunnel tunnel) {
+        final RunningTunnel running = runningTunnels.get(tunnel);
+        if (running == null)
+            return new Statistics();
+        int count = wgGetStatistics(running.handle, statisticsBuffer);
+        if (count * UapiBinaryCodec.STATISTICS_RECORD_SIZE > statisticsBuffer.capacity()) {
+            statisticsBuffer = ByteBuffer.allocateDirect(count * UapiBinaryCodec.STATISTICS_RECORD_SIZE);
+            count = wgGetStatistics(running.handle, statisticsBuffer);
+        }
+        if (count < 0)
+            return new Statistics();
+        statisticsBuffer.clear();
+        // A peer added between the two calls is simply left out of this poll.
+        final Statistics statistics = UapiBinaryCodec.decodeStatistics(statisticsBuffer,
+                Math.min(count, statisticsBuffer.capacity() / UapiBinaryCodec.STATISTICS_RECORD_SIZE));
+        if (!running.isFirstHandshakeRecorded)
+            recordFirstHandshake(running, statistics);
+        return statistics;
+    }
+
+    @Override
+    public synchronized Map<Tunnel, Statistics> getStatistics(final Collection<Tunnel> tunnels) {
+        final Map<Tunnel, Statistics> statistics = new HashMap<>(tunnels.size());
+        for (final Tunnel tunnel : tunnels)
+            statistics.put(tunnel, getStatistics(tunnel));
+        return statistics;
     }
 
     @Override
@@ -104,98 +273,229 @@ public final class GoBackend implements Backend {
         return wgVersion();
     }
 
+    /*
+     * Work out the addresses, routes, and DNS servers of a VPN interface shared by all of the given
+     * configurations. Only applications excluded by every configuration are excluded, since the
+     * interface is shared. Probing the path MTU may need the endpoints to be resolved, and the
+     * probes must bypass the VPN if one is already up.
+     */
+    private InterfacePlan planInterface(final Collection<String> names, final Collection<Config> configs,
+                                        @Nullable final VpnService protector) {
+        Set<String> excludedApplications = null;
+        final List<InetNetwork> addresses = new ArrayList<>();
+        final List<InetNetwork> routes = new ArrayList<>();
+        final Set<InetAddress> dnsServers = new LinkedHashSet<>();
+        int mtu = Integer.MAX_VALUE;
+        for (final Config config : configs) {
+            if (excludedApplications == null)
+                excludedApplications = new ArraySet<>(config.getInterface().getExcludedApplications());
+            else
+                excludedApplications.retainAll(config.getInterface().getExcludedApplications());
+
+            addresses.addAll(config.getInterface().getAddresses());
+
+            dnsServers.addAll(config.getInterface().getDnsServers());
+
+            for (final Peer peer : config.getPeers())
+                routes.addAll(peer.getAllowedIps());
+
+            if (config.getInterface().getMtu().isPresent()) {
+                mtu = Math.min(mtu, config.getInterface().getMtu().get());
+            } else {
+                try (final LatencyTrace.Section ignored = Application.getLatencyTrace().begin("GoBackend plan: path MTU probe")) {
+                    mtu = Math.min(mtu, mtuProber.getTunnelMtu(config, protector));
+                }
+            }
+        }
+        return new InterfacePlan(TextUtils.join(", ", names), addresses, routes, dnsServers,
+                excludedApplications != null ? excludedApplications : Collections.emptySet(), mtu);
+    }
+
+    /*
+     * Move the running tunnels to a new interface without the routes of one that has stopped. On
+     * failure they stay on the old interface, which still works but routes more than necessary.
+     */
+    private void reestablish(final VpnService service) {
+        if (runningTunnels.isEmpty())
+            return;
+        final List<String> names = new ArrayList<>(runningTunnels.size());
+        final List<Config> configs = new ArrayList<>(runningTunnels.size());
+        for (final Map.Entry<Tunnel, RunningTunnel> entry : runningTunnels.entrySet()) {
+            names.add(entry.getKey().getName());
+            configs.add(entry.getValue().config);
+        }
+        try (final LatencyTrace.Section ignored = Application.getLatencyTrace().begin("GoBackend reestablish");
+             final ParcelFileDescriptor tun = establish(service, planInterface(names, configs, service))) {
+            if (wgReplaceTun(tun.detachFd()) < 0)
+                Log.e(TAG, "Unable to move tunnels to a new interface");
+        } catch (final Exception e) {
+            Log.e(TAG, "Unable to create a new interface for the running tunnels", e);
+        }
+    }
+
     @Override
-    public State setState(final Tunnel tunnel, State state) throws Exception {
+    public synchronized State setState(final Tunnel tunnel, State state) throws Exception {
         final State originalState = getState(tunnel);
         if (state == State.TOGGLE)
             state = originalState == State.UP ? State.DOWN : State.UP;
         if (state == originalState)
             return originalState;
-        if (state == State.UP && currentTunnel != null)
-            throw new IllegalStateException(context.getResources().getString(R.string.multiple_tunnels_error));
         Log.d(TAG, "Changing tunnel " + tunnel.getName() + " to state " + state);
         setStateInternal(tunnel, tunnel.getConfig(), state);
         return getState(tunnel);
     }
 
+    @Override
+    public synchronized Map<Tunnel, State> setStates(final Map<Tunnel, State> states) {
+        // Bring tunnels down first, so the interface never carries more routes than necessary.
+        final Map<Tunnel, State> newStates = new HashMap<>(states.size());
+        for (final Map.Entry<Tunnel, State> entry : states.entrySet()) {
+            if (entry.getValue() == State.DOWN || runningTunnels.containsKey(entry.getKey()))
+                newStates.put(entry.getKey(), setStateOrLog(entry.getKey(), entry.getValue()));
+        }
+        for (final Map.Entry<Tunnel, State> entry : states.entrySet()) {
+            if (!newStates.containsKey(entry.getKey()))
+                newStates.put(entry.getKey(), setStateOrLog(entry.getKey(), entry.getValue()));
+        }
+        return newStates;
+    }
+
+    private State setStateOrLog(final Tunnel tunnel, final State state) {
+        try {
+            return setState(tunnel, state);
+        } catch (final Exception e) {
+            Log.e(TAG, "Unable to change state of tunnel " + tunnel.getName(), e);
+            return getState(tunnel);
+        }
+    }
+
     private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state)
             throws Exception {
+        final LatencyTrace trace = Application.getLatencyTrace();
 
         if (state == State.UP) {
             Log.i(TAG, "Bringing tunnel up");
 
             Objects.requireNonNull(config, context.getResources().getString(R.string.no_config_error));
 
+            // Neither of these brings anything up, so they are left out of the trace.
             if (VpnService.prepare(context) != null)
                 throw new Exception(context.getResources().getString(R.string.vpn_not_authed_error));
 
-            final VpnService service;
-            if (!vpnService.isDone())
-                startVpnService();
-
-            try {
-                service = vpnService.get(2, TimeUnit.SECONDS);
-            } catch (final TimeoutException e) {
-                throw new Exception(context.getResources().getString(R.string.vpn_start_error), e);
-            }
-
-            if (currentTunnelHandle != -1) {
+            if (runningTunnels.containsKey(tunnel)) {
                 Log.w(TAG, "Tunnel already up");
                 return;
             }
 
-            // Build config
-            final String goConfig = config.toWgUserspaceString();
-
-            // Create the vpn tunnel with android API
-            final VpnService.Builder builder = service.getBuilder();
-            builder.setSession(tunnel.getName());
-
-            final Intent configureIntent = new Intent(context, MainActivity.class);
-            configureIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            builder.setConfigureIntent(PendingIntent.getActivity(context, 0, configureIntent, 0));
-
-            for (final String excludedApplication : config.getInterface().getExcludedApplications())
-                builder.addDisallowedApplication(excludedApplication);
-
-            for (final InetNetwork addr : config.getInterface().getAddresses())
-                builder.addAddress(addr.getAddress(), addr.getMask());
-
-            for (final InetAddress addr : config.getInterface().getDnsServers())
-                builder.addDnsServer(addr.getHostAddress());
-
-            for (final Peer peer : config.getPeers()) {
-                for (final InetNetwork addr : peer.getAllowedIps())
-                    builder.addRoute(addr.getAddress(), addr.getMask());
-            }
-
-            builder.setMtu(config.getInterface().getMtu().orElse(1280));
-
-            builder.setBlocking(true);
-            try (final ParcelFileDescriptor tun = builder.establish()) {
-                if (tun == null)
-                    throw new Exception(context.getResources().getString(R.string.tun_create_error));
-                Log.d(TAG, "Go backend v" + wgVersion());
-                currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+            try (final LatencyTrace.Section section = trace.begin("GoBackend up")) {
+                /*
+                 * The steps of tunnel-up form a graph rather than a sequence. The service starts
+                 * while endpoints are resolved, and routes are planned at the same time, so the
+                 * slowest of those, rather than their sum, decides when the interface can be
+                 * established. Only encoding the configuration waits for the lookups.
+                 */
+                final long startTime = System.currentTimeMillis();
+                if (!vpnService.isDone())
+                    startVpnService();
+                final CompletableFuture<VpnService> futureService = vpnService;
+
+                final List<CompletableFuture<?>> lookups = new ArrayList<>();
+                for (final Peer peer : config.getPeers()) {
+                    final Optional<InetEndpoint> endpoint = peer.getEndpoint();
+                    if (endpoint.isPresent())
+                        lookups.add(CompletableFuture.runAsync(() -> {
+                            try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: resolve endpoint")) {
+                                endpoint.get().getResolved();
+                            }
+                        }, pipeline));
+                }
+                final CompletableFuture<ByteBuffer> futureGoConfig =
+                        CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(x -> {
+                            try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: encode config")) {
+                                return UapiBinaryCodec.encodeConfig(config);
+                            }
+                        });
+
+                // Plan the interface, shared with any tunnels that are already up
+                final List<String> names = new ArrayList<>(runningTunnels.size() + 1);
+                final List<Config> configs = new ArrayList<>(runningTunnels.size() + 1);
+                for (final Map.Entry<Tunnel, RunningTunnel> entry : runningTunnels.entrySet()) {
+                    names.add(entry.getKey().getName());
+                    configs.add(entry.getValue().config);
+                }
+                names.add(tunnel.getName());
+                configs.add(config);
+                // Before the service is up, no VPN is running for the probes to bypass.
+                @Nullable final VpnService protector = futureService.getNow(null);
+                final CompletableFuture<InterfacePlan> futurePlan = CompletableFuture.supplyAsync(() -> {
+                    try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: plan interface")) {
+                        return planInterface(names, configs, protector);
+                    }
+                }, pipeline);
+
+                try {
+                    final VpnService service;
+                    try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: wait for VpnService")) {
+                        service = futureService.get(2, TimeUnit.SECONDS);
+                    } catch (final TimeoutException e) {
+                        throw new Exception(context.getResources().getString(R.string.vpn_start_error), e);
+                    }
+
+                    final InterfacePlan plan;
+                    final ByteBuffer goConfig;
+                    try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: wait for plan and config")) {
+                        plan = await(futurePlan);
+                        goConfig = await(futureGoConfig);
+                    }
+
+                    final int handle;
+                    try (final ParcelFileDescriptor tun = establish(service, plan);
+                         final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: wgTurnOn")) {
+                        Log.d(TAG, "Go backend v" + wgVersion());
+                        handle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig, goConfig.limit(), getDatapathProfile());
+                    }
+                    if (handle < 0) {
+                        // The other tunnels are now on an interface that has routes for this one too.
+                        reestablish(service);
+                        throw new Exception(String.format(Locale.getDefault(), context.getResources().getString(R.string.tunnel_on_error), handle));
+                    }
+
+                    runningTunnels.put(tunnel, new RunningTunnel(config, handle, startTime));
+
+                    try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend up: protect sockets")) {
+                        service.protect(wgGetSocketV4(handle));
+                        service.protect(wgGetSocketV6(handle));
+                    }
+                } catch (final Exception e) {
+                    section.fail();
+                    throw e;
+                } finally {
+                    // Don't leave the private key in native memory until the buffer is collected,
+                    // even if encoding finishes after a failure elsewhere.
+                    futureGoConfig.thenAccept(goConfig -> {
+                        goConfig.clear();
+                        while (goConfig.hasRemaining())
+                            goConfig.put((byte) 0);
+                    });
+                }
             }
-            if (currentTunnelHandle < 0)
-                throw new Exception(String.format(Locale.getDefault(), context.getResources().getString(R.string.tunnel_on_error), currentTunnelHandle));
-
-            currentTunnel = tunnel;
-
-            service.protect(wgGetSocketV4(currentTunnelHandle));
-            service.protect(wgGetSocketV6(currentTunnelHandle));
         } else {
             Log.i(TAG, "Bringing tunnel down");
 
-            if (currentTunnelHandle == -1) {
+            final RunningTunnel running = runningTunnels.remove(tunnel);
+            if (running == null) {
                 Log.w(TAG, "Tunnel already down");
                 return;
             }
 
-            wgTurnOff(currentTunnelHandle);
-            currentTunnel = null;
-            currentTunnelHandle = -1;
+            try (final LatencyTrace.Section ignored = trace.begin("GoBackend down")) {
+                try (final LatencyTrace.Section ignored2 = trace.begin("GoBackend down: wgTurnOff")) {
+                    wgTurnOff(running.handle);
+                }
+                final VpnService service = vpnService.getNow(null);
+                if (service != null)
+                    reestablish(service);
+            }
         }
     }
 
@@ -204,6 +504,62 @@ public final class GoBackend implements Backend {
         context.startService(new Intent(context, VpnService.class));
     }
 
+    /*
+     * Record the time from the request to bring a tunnel up until any of its peers completes a
+     * handshake, which is when traffic can actually flow. Peers report when their latest handshake
+     * happened, so this is worked out from whichever statistics poll first sees one, such as the
+     * ones made to show the tunnel, instead of polling for it.
+     */
+    private static void recordFirstHandshake(final RunningTunnel running, final Statistics statistics) {
+        long first = Long.MAX_VALUE;
+        for (final PeerStatistics peer : statistics.getPeers().values()) {
+            if (peer.getLastHandshakeTime() > 0)
+                first = Math.min(first, peer.getLastHandshakeTime());
+        }
+        if (first != Long.MAX_VALUE) {
+            running.isFirstHandshakeRecorded = true;
+            if (first - running.startTime < FIRST_HANDSHAKE_WINDOW_MS)
+                Application.getLatencyTrace().record("GoBackend up: time to first handshake",
+                        TimeUnit.MILLISECONDS.toNanos(Math.max(0, first - running.startTime)));
+        } else if (System.currentTimeMillis() - running.startTime >= FIRST_HANDSHAKE_WINDOW_MS) {
+            running.isFirstHandshakeRecorded = true;
+        }
+    }
+
+    private static final class InterfacePlan {
+        final Collection<InetNetwork> addresses;
+        final Collection<InetAddress> dnsServers;
+        final Collection<String> excludedApplications;
+        final int mtu;
+        final Collection<InetNetwork> routes;
+        final String session;
+
+        InterfacePlan(final String session, final Collection<InetNetwork> addresses,
+                      final Collection<InetNetwork> routes, final Collection<InetAddress> dnsServers,
+                      final Collection<String> excludedApplications, final int mtu) {
+            this.addresses = addresses;
+            this.dnsServers = dnsServers;
+            this.excludedApplications = excludedApplications;
+            this.mtu = mtu;
+            this.routes = routes;
+            this.session = session;
+        }
+    }
+
+    private static final class RunningTunnel {
+        final Config config;
+        final int handle;
+        /* The wall clock time at which the tunnel was asked to come up, as handshake times are. */
+        final long startTime;
+        boolean isFirstHandshakeRecorded;
+
+        RunningTunnel(final Config config, final int handle, final long startTime) {
+            this.config = config;
+            this.handle = handle;
+            this.startTime = startTime;
+        }
+    }
+
     public static class VpnService extends android.net.VpnService {
         public Builder getBuilder() {
             return new Builder();
@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.InetAddresses;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.Peer;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java9.util.Optional;
+import java9.util.concurrent.CompletableFuture;
+
+/**
+ * Estimates the path MTU toward peer endpoints, to choose a tunnel MTU for configurations that
+ * don't set one. Probes are UDP datagrams sent with the don't-fragment flag, and the search runs
+ * between the IPv6 minimum and the MTU of the local route. A size is only accepted once the
+ * endpoint echoes the probe or answers with an ICMP port unreachable; silence proves nothing, since
+ * many networks drop ICMP. WireGuard peers answer neither way, so tunnels to them keep
+ * {@link #MIN_MTU}, which is always safe; a stand-in peer that echoes datagrams, such as a local
+ * UDP echo server, exercises the whole search.
+ * Peers sharing an endpoint are probed once, all endpoints are probed at the same time, and every
+ * search gives up after {@link #SEARCH_TIMEOUT_MS}, since interfaces are planned while a tunnel is
+ * being brought up. Results are kept for a while so that re-establishing the interface doesn't
+ * probe again.
+ */
+
+final class PathMtuProber {
+    static final int MIN_MTU = 1280;
+    private static final long CACHE_MS = 10 * 60 * 1000;
+    private static final int IPV6_MTU = 24;
+    private static final int IPV6_MTU_DISCOVER = 23;
+    private static final int IPV6_PMTUDISC_DO = 2;
+    private static final int IP_MTU = 14;
+    private static final int IP_MTU_DISCOVER = 10;
+    private static final int IP_PMTUDISC_DO = 2;
+    private static final int MAX_MTU = 1500;
+    private static final int PROBE_TIMEOUT_MS = 150;
+    private static final int SEARCH_STEP = 8;
+    private static final long SEARCH_TIMEOUT_MS = 2000;
+    private static final String TAG = "WireGuard/" + PathMtuProber.class.getSimpleName();
+    private static final int TOKEN_LENGTH = 8;
+    /* IPv6 and UDP headers, plus the WireGuard data header and authentication tag, as in wg-quick. */
+    private static final int WIREGUARD_OVERHEAD = 80;
+
+    private final Map<InetSocketAddress, CachedResult> cache = new HashMap<>();
+    private final Executor executor;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param executor Runs the probes of each endpoint of a tunnel in parallel.
+     */
+    PathMtuProber(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Find the largest IP packet, up to the local route's MTU, that reaches an endpoint unfragmented.
+     *
+     * @param protector The VPN service, if any, whose routes the probes must bypass.
+     * @return the path MTU, or {@link #MIN_MTU} if nothing larger could be shown to work in time
+     */
+    int probe(final InetSocketAddress endpoint, @Nullable final android.net.VpnService protector) {
+        synchronized (cache) {
+            final CachedResult cached = cache.get(endpoint);
+            if (cached != null && SystemClock.elapsedRealtime() - cached.time < CACHE_MS)
+                return cached.mtu;
+        }
+        int mtu = MIN_MTU;
+        boolean isComplete = false;
+        try (final DatagramSocket socket = new DatagramSocket();
+             final ParcelFileDescriptor pfd = ParcelFileDescriptor.fromDatagramSocket(socket)) {
+            if (protector != null && !protector.protect(socket))
+                throw new IOException("Unable to protect probe socket");
+            final Search search = new Search(socket, pfd.getFileDescriptor(), endpoint);
+            mtu = search.run();
+            isComplete = !search.isTimedOut;
+        } catch (final ErrnoException | IOException e) {
+            Log.w(TAG, "Unable to probe path MTU to " + endpoint, e);
+        }
+        Log.d(TAG, "Path MTU to " + endpoint + " is " + mtu + (isComplete ? "" : " or more"));
+        // A search that ran out of time only found a lower bound, so the next one may do better.
+        if (isComplete) {
+            synchronized (cache) {
+                cache.put(endpoint, new CachedResult(mtu, SystemClock.elapsedRealtime()));
+            }
+        }
+        return mtu;
+    }
+
+    /**
+     * Choose an MTU for a tunnel that leaves room for WireGuard's overhead on the narrowest path to
+     * any of its peers. Peers without a resolvable endpoint can't be probed and are skipped; an
+     * endpoint whose probe doesn't finish in time counts as {@link #MIN_MTU}.
+     */
+    int getTunnelMtu(final Config config, @Nullable final android.net.VpnService protector) {
+        final Set<InetEndpoint> endpoints = new LinkedHashSet<>();
+        for (final Peer peer : config.getPeers()) {
+            if (peer.getEndpoint().isPresent())
+                endpoints.add(peer.getEndpoint().get());
+        }
+        if (endpoints.isEmpty())
+            return MIN_MTU;
+        final List<CompletableFuture<Integer>> probes = new ArrayList<>(endpoints.size());
+        for (final InetEndpoint endpoint : endpoints) {
+            probes.add(CompletableFuture.supplyAsync(() -> {
+                final Optional<InetEndpoint> resolved = endpoint.getResolved();
+                if (!resolved.isPresent())
+                    return Integer.MAX_VALUE;
+                final InetAddress address = InetAddresses.parse(resolved.get().getHost());
+                return probe(new InetSocketAddress(address, resolved.get().getPort()), protector);
+            }, executor));
+        }
+        final long deadline = SystemClock.elapsedRealtime() + SEARCH_TIMEOUT_MS + PROBE_TIMEOUT_MS;
+        int pathMtu = Integer.MAX_VALUE;
+        for (final CompletableFuture<Integer> future : probes) {
+            try {
+                pathMtu = Math.min(pathMtu, future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()),
+                        TimeUnit.MILLISECONDS));
+            } catch (final TimeoutException e) {
+                // The probe may still be waiting for a thread; its result is cached for next time.
+                pathMtu = MIN_MTU;
+            } catch (final ExecutionException | InterruptedException e) {
+                Log.w(TAG, "Unable to probe path MTU", e);
+                pathMtu = MIN_MTU;
+            }
+        }
+        if (pathMtu == Integer.MAX_VALUE)
+            return MIN_MTU;
+        return Math.max(MIN_MTU, pathMtu - WIREGUARD_OVERHEAD);
+    }
+
+    private static final class CachedResult {
+        final int mtu;
+        final long time;
+
+        CachedResult(final int mtu, final long time) {
+            this.mtu = mtu;
+            this.time = time;
+        }
+    }
+
+    /*
+     * One binary search over a connected socket, so that ICMP errors are reported on it.
+     */
+    private final class Search {
+        private final long deadline = SystemClock.elapsedRealtime() + SEARCH_TIMEOUT_MS;
+        private final FileDescriptor fd;
+        private final int headerLength;
+        private final boolean isIpv6;
+        private final byte[] received = new byte[MAX_MTU];
+        private final byte[] token = new byte[TOKEN_LENGTH];
+        boolean isTimedOut;
+
+        Search(final DatagramSocket socket, final FileDescriptor fd, final InetSocketAddress endpoint)
+                throws ErrnoException, IOException {
+            this.fd = fd;
+            isIpv6 = endpoint.getAddress() instanceof Inet6Address;
+            headerLength = (isIpv6 ? 40 : 20) + 8;
+            if (isIpv6)
+                Os.setsockoptInt(fd, OsConstants.IPPROTO_IPV6, IPV6_MTU_DISCOVER, IPV6_PMTUDISC_DO);
+            else
+                Os.setsockoptInt(fd, OsConstants.IPPROTO_IP, IP_MTU_DISCOVER, IP_PMTUDISC_DO);
+            socket.connect(endpoint);
+            random.nextBytes(token);
+        }
+
+        private int getKernelMtu() throws ErrnoException {
+            return isIpv6 ? Os.getsockoptInt(fd, OsConstants.IPPROTO_IPV6, IPV6_MTU) :
+                    Os.getsockoptInt(fd, OsConstants.IPPROTO_IP, IP_MTU);
+        }
+
+        private boolean isEcho(final int length, final int size) {
+            if (length != size - headerLength)
+                return false;
+            for (int i = 0; i < TOKEN_LENGTH; ++i) {
+                if (received[i] != token[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /*
+         * Send a probe that makes an IP packet of the given size, and report whether it got through.
+         */
+        private boolean probe(final int size) throws ErrnoException {
+            final byte[] payload = new byte[size - headerLength];
+            System.arraycopy(token, 0, payload, 0, TOKEN_LENGTH);
+            try {
+                Os.write(fd, payload, 0, payload.length);
+                final StructPollfd pollfd = new StructPollfd();
+                pollfd.fd = fd;
+                pollfd.events = (short) OsConstants.POLLIN;
+                final long deadline = SystemClock.elapsedRealtime() + PROBE_TIMEOUT_MS;
+                long remaining;
+                while ((remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                    if (Os.poll(new StructPollfd[]{pollfd}, (int) remaining) == 0)
+                        break;
+                    // Replies to earlier, smaller probes may still be arriving.
+                    if (isEcho(Os.read(fd, received, 0, received.length), size))
+                        return true;
+                }
+            } catch (final ErrnoException e) {
+                if (e.errno == OsConstants.EMSGSIZE)
+                    return false;
+                // The packet reached a host that has nothing listening, so its size was fine.
+                if (e.errno == OsConstants.ECONNREFUSED)
+                    return true;
+                throw e;
+            }
+            // The probe may have been too big, or simply unanswered; either way it isn't confirmed.
+            return false;
+        }
+
+        int run() throws ErrnoException {
+            int good = MIN_MTU;
+            int bad = Math.min(getKernelMtu(), MAX_MTU);
+            if (bad <= good)
+                return good;
+            // Nothing larger can be confirmed by a peer that doesn't answer even the smallest probe.
+            if (!probe(MIN_MTU)) {
+                Log.i(TAG, "Endpoint doesn't answer probes, so only the minimum MTU is known to be safe");
+                return good;
+            }
+            if (probe(bad))
+                return bad;
+            // A failed probe may have taught the kernel a tighter bound.
+            bad = Math.min(bad, getKernelMtu() + 1);
+            while (bad - good > SEARCH_STEP) {
+                if (SystemClock.elapsedRealtime() >= deadline) {
+                    isTimedOut = true;
+                    break;
+                }
+                final int size = (good + bad) / 2;
+                if (probe(size))
+                    good = size;
+                else
+                    bad = Math.min(size, getKernelMtu() + 1);
+            }
+            return good;
+        }
+    }
+}
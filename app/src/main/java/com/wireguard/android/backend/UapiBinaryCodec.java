@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.backend;
+
+import android.support.annotation.Nullable;
+
+import com.wireguard.android.model.Tunnel.PeerStatistics;
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.config.Config;
+import com.wireguard.config.InetAddresses;
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.InetNetwork;
+import com.wireguard.config.Interface;
+import com.wireguard.config.Peer;
+import com.wireguard.crypto.Key;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import java9.util.Optional;
+
+/**
+ * Encodes configurations for, and decodes statistics from, the binary interface of libwg-go. Both
+ * travel in direct byte buffers, so neither side converts strings or parses text. The layouts are
+ * described in {@code tools/libwg-go/src/binaryapi-android.go}; all integers are big-endian.
+ */
+
+final class UapiBinaryCodec {
+    static final int STATISTICS_RECORD_SIZE = 80;
+    private static final int FLAG_ENDPOINT = 0x2;
+    private static final int FLAG_PRESHARED_KEY = 0x1;
+    private static final int KEY_LENGTH = Key.Format.BINARY.getLength();
+    private static final int VERSION = 1;
+
+    private UapiBinaryCodec() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Decode the records written by {@code wgGetStatistics}, starting at the buffer's position.
+     */
+    static Statistics decodeStatistics(final ByteBuffer buffer, final int count) {
+        final Map<String, PeerStatistics> peers = new HashMap<>(count);
+        final byte[] key = new byte[KEY_LENGTH];
+        final byte[] address4 = new byte[4];
+        final byte[] address16 = new byte[16];
+        for (int i = 0; i < count; ++i) {
+            final int start = buffer.position();
+            buffer.get(key);
+            final int addressLength = buffer.get();
+            final byte[] address = addressLength == 4 ? address4 : address16;
+            buffer.get(address);
+            buffer.position(start + 49);
+            final int port = buffer.getShort() & 0xffff;
+            buffer.position(start + 56);
+            final long lastHandshakeTime = buffer.getLong();
+            final long rxBytes = buffer.getLong();
+            final long txBytes = buffer.getLong();
+            @Nullable String endpoint = null;
+            if (addressLength == 4 || addressLength == 16) {
+                try {
+                    // A numeric address never causes a DNS lookup.
+                    final String host = InetAddress.getByAddress(address).getHostAddress();
+                    endpoint = addressLength == 16 ? '[' + host + "]:" + port : host + ':' + port;
+                } catch (final UnknownHostException ignored) {
+                    // Leave the endpoint unknown.
+                }
+            }
+            peers.put(Key.fromBytes(key).toBase64(),
+                    new PeerStatistics(endpoint, lastHandshakeTime, rxBytes, txBytes));
+        }
+        return new Statistics(peers);
+    }
+
+    /**
+     * Encode the parts of a configuration that wireguard-go uses into a direct buffer, positioned
+     * at zero with its limit at the end of the encoding.
+     */
+    static ByteBuffer encodeConfig(final Config config) {
+        final Interface iface = config.getInterface();
+        int size = 1 + KEY_LENGTH + 2 + 2;
+        for (final Peer peer : config.getPeers()) {
+            size += KEY_LENGTH + 1 + KEY_LENGTH + 1 + 16 + 2 + 2 + 2;
+            size += peer.getAllowedIps().size() * (1 + 16 + 1);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put((byte) VERSION);
+        buffer.put(iface.getKeyPair().getPrivateKey().getBytes());
+        buffer.putShort((short) (int) iface.getListenPort().orElse(0));
+        buffer.putShort((short) config.getPeers().size());
+        for (final Peer peer : config.getPeers()) {
+            buffer.put(peer.getPublicKey().getBytes());
+            final Optional<Key> preSharedKey = peer.getPreSharedKey();
+            // Endpoints are only ever sent as numeric addresses, resolved here if need be.
+            final Optional<InetEndpoint> endpoint = peer.getEndpoint().flatMap(InetEndpoint::getResolved);
+            buffer.put((byte) ((preSharedKey.isPresent() ? FLAG_PRESHARED_KEY : 0) |
+                    (endpoint.isPresent() ? FLAG_ENDPOINT : 0)));
+            if (preSharedKey.isPresent())
+                buffer.put(preSharedKey.get().getBytes());
+            if (endpoint.isPresent()) {
+                final byte[] address = InetAddresses.parse(endpoint.get().getHost()).getAddress();
+                buffer.put((byte) address.length);
+                buffer.put(address);
+                buffer.putShort((short) endpoint.get().getPort());
+            }
+            buffer.putShort((short) (int) peer.getPersistentKeepalive().orElse(0));
+            buffer.putShort((short) peer.getAllowedIps().size());
+            for (final InetNetwork allowedIp : peer.getAllowedIps()) {
+                final byte[] address = allowedIp.getAddress().getAddress();
+                buffer.put((byte) address.length);
+                buffer.put(address);
+                buffer.put((byte) allowedIp.getMask());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -6,42 +6,70 @@
 package com.wireguard.android.backend;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.wireguard.android.Application;
+import com.wireguard.android.BuildConfig;
 import com.wireguard.android.R;
 import com.wireguard.android.model.Tunnel;
+import com.wireguard.android.model.Tunnel.PeerStatistics;
 import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.LatencyTrace;
+import com.wireguard.android.util.RootHelper;
+import com.wireguard.android.util.RootHelper.PeerRecord;
 import com.wireguard.config.Config;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
-import java9.util.stream.Collectors;
-import java9.util.stream.Stream;
-
 /**
  * WireGuard backend that uses {@code wg-quick} to implement tunnel configuration.
  */
 
 public final class WgQuickBackend implements Backend {
+    /* Long enough to cover one refresh of the tunnel list, short enough to notice outside changes. */
+    /*
+     * Bringing an interface down only needs its name, so this stands in for the config of a tunnel
+     * whose config is gone, such as one whose file was deleted while it was running.
+     */
+    private static final String DOWN_CONFIG = "[Interface]\n";
+    private static final long INTERFACE_CACHE_MS = 1000;
     private static final String TAG = "WireGuard/" + WgQuickBackend.class.getSimpleName();
 
-    private final File localTemporaryDir;
     private final Context context;
+    private final RootHelper helper;
+    @Nullable private Set<String> cachedInterfaces;
+    private long cachedInterfacesTime;
+    private int interfacesGeneration;
 
-    public WgQuickBackend(final Context context) {
-        localTemporaryDir = new File(context.getCacheDir(), "tmp");
+    public WgQuickBackend(final Context context) throws IOException {
+        final File cacheDir = context.getCacheDir();
+        final File localBinaryDir = new File(cacheDir, "bin");
+        final File localTemporaryDir = new File(cacheDir, "tmp");
+        if (!localBinaryDir.isDirectory() && !localBinaryDir.mkdirs())
+            throw new FileNotFoundException(context.getResources().getString(R.string.create_bin_dir_error));
+        if (!localTemporaryDir.isDirectory() && !localTemporaryDir.mkdirs())
+            throw new FileNotFoundException(context.getResources().getString(R.string.create_temp_dir_error));
+        final File helperBinary = new File(context.getApplicationInfo().nativeLibraryDir, "libwg-helper.so");
+        // The helper replaces the root shell it is started from, keeping its environment.
+        final String preamble = String.format("export CALLING_PACKAGE=%s PATH=\"%s:$PATH\" TMPDIR='%s'; exec '%s'\n",
+                BuildConfig.APPLICATION_ID, localBinaryDir, localTemporaryDir, helperBinary);
+        helper = new RootHelper(Collections.singletonList("su"), preamble);
         this.context = context;
+        // This is the only root session most runs need, and starting it is what checks for root.
+        helper.start();
     }
 
     @Override
@@ -62,28 +90,78 @@ public final class WgQuickBackend implements Backend {
 
     @Override
     public Set<String> enumerate() {
-        final List<String> output = new ArrayList<>();
         // Don't throw an exception here or nothing will show up in the UI.
         try {
             Application.getToolsInstaller().ensureToolsAvailable();
-            if (Application.getRootShell().run(output, "wg show interfaces") != 0 || output.isEmpty())
-                return Collections.emptySet();
+            return fetchInterfaces();
         } catch (final Exception e) {
             Log.w(TAG, "Unable to enumerate running tunnels", e);
             return Collections.emptySet();
         }
-        // wg puts all interface names on the same line. Split them into separate elements.
-        return Stream.of(output.get(0).split(" ")).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Ask the helper which interfaces exist, and remember the answer for the calls that follow.
+     */
+    private Set<String> fetchInterfaces() throws IOException {
+        final int generation;
+        synchronized (this) {
+            generation = interfacesGeneration;
+        }
+        final Set<String> interfaces = Collections.unmodifiableSet(helper.enumerate());
+        synchronized (this) {
+            // Don't cache an answer that a state change may have made stale while it was fetched.
+            if (generation == interfacesGeneration) {
+                cachedInterfaces = interfaces;
+                cachedInterfacesTime = SystemClock.elapsedRealtime();
+            }
+        }
+        return interfaces;
+    }
+
+    /**
+     * Get the set of existing interfaces, reusing a recent enumeration if there is one. This lets
+     * every state query in a refresh of the tunnel list share a single request to the helper.
+     */
+    private Set<String> getInterfaces() throws IOException {
+        synchronized (this) {
+            if (cachedInterfaces != null &&
+                    SystemClock.elapsedRealtime() - cachedInterfacesTime < INTERFACE_CACHE_MS)
+                return cachedInterfaces;
+        }
+        return fetchInterfaces();
     }
 
     @Override
-    public State getState(final Tunnel tunnel) {
-        return enumerate().contains(tunnel.getName()) ? State.UP : State.DOWN;
+    public State getState(final Tunnel tunnel) throws Exception {
+        return State.of(getInterfaces().contains(tunnel.getName()));
     }
 
     @Override
-    public Statistics getStatistics(final Tunnel tunnel) {
-        return new Statistics();
+    public Statistics getStatistics(final Tunnel tunnel) throws Exception {
+        return getStatistics(Collections.singletonList(tunnel)).get(tunnel);
+    }
+
+    @Override
+    public Map<Tunnel, Statistics> getStatistics(final Collection<Tunnel> tunnels) throws Exception {
+        // A single request covers every interface, so the number of tunnels doesn't matter.
+        Application.getToolsInstaller().ensureToolsAvailable();
+        final Map<String, Map<String, PeerStatistics>> interfaces = new HashMap<>();
+        for (final PeerRecord record : helper.getStatistics(null)) {
+            Map<String, PeerStatistics> peers = interfaces.get(record.getInterfaceName());
+            if (peers == null) {
+                peers = new HashMap<>();
+                interfaces.put(record.getInterfaceName(), peers);
+            }
+            peers.put(record.getPublicKey(), new PeerStatistics(record.getEndpoint(),
+                    record.getLastHandshakeTime(), record.getRxBytes(), record.getTxBytes()));
+        }
+        final Map<Tunnel, Statistics> statistics = new HashMap<>(tunnels.size());
+        for (final Tunnel tunnel : tunnels) {
+            final Map<String, PeerStatistics> peers = interfaces.get(tunnel.getName());
+            statistics.put(tunnel, peers != null ? new Statistics(peers) : new Statistics());
+        }
+        return statistics;
     }
 
     @Override
@@ -93,11 +171,16 @@ public final class WgQuickBackend implements Backend {
 
     @Override
     public String getVersion() throws Exception {
-        final List<String> output = new ArrayList<>();
-        if (Application.getRootShell()
-                .run(output, "cat /sys/module/wireguard/version") != 0 || output.isEmpty())
-            throw new Exception(context.getResources().getString(R.string.module_version_error));
-        return output.get(0);
+        try {
+            return helper.getVersion();
+        } catch (final IOException e) {
+            throw new Exception(context.getResources().getString(R.string.module_version_error), e);
+        }
+    }
+
+    private synchronized void invalidateInterfaces() {
+        cachedInterfaces = null;
+        ++interfacesGeneration;
     }
 
     @Override
@@ -113,21 +196,86 @@ public final class WgQuickBackend implements Backend {
         return getState(tunnel);
     }
 
-    private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state) throws Exception {
-        Objects.requireNonNull(config, "Trying to set state with a null config");
-
-        final File tempFile = new File(localTemporaryDir, tunnel.getName() + ".conf");
-        try (final FileOutputStream stream = new FileOutputStream(tempFile, false)) {
-            stream.write(config.toWgQuickString().getBytes(StandardCharsets.UTF_8));
+    @Override
+    public Map<Tunnel, State> setStates(final Map<Tunnel, State> states) throws Exception {
+        Log.d(TAG, "Changing state of " + states.size() + " tunnels");
+        Application.getToolsInstaller().ensureToolsAvailable();
+        final Set<String> running = getInterfaces();
+        // Bring tunnels down first, so routes never overlap more than necessary.
+        final List<String> names = new ArrayList<>(states.size());
+        final List<RootHelper.StateChange> changes = new ArrayList<>(states.size());
+        for (final boolean up : new boolean[]{false, true}) {
+            for (final Map.Entry<Tunnel, State> entry : states.entrySet()) {
+                final Tunnel tunnel = entry.getKey();
+                final boolean isUp = running.contains(tunnel.getName());
+                final boolean wantUp = entry.getValue() == State.TOGGLE ? !isUp : entry.getValue() == State.UP;
+                if (wantUp == isUp || wantUp != up)
+                    continue;
+                final Config config = tunnel.getConfig();
+                if (config == null && wantUp) {
+                    Log.e(TAG, "Unable to change state of tunnel " + tunnel.getName() + " without a config");
+                    continue;
+                }
+                names.add(tunnel.getName());
+                changes.add(new RootHelper.StateChange(tunnel.getName(), wantUp,
+                        config != null ? config.toWgQuickString() : DOWN_CONFIG));
+            }
         }
-        String command = String.format("wg-quick %s '%s'",
-                state.toString().toLowerCase(Locale.ENGLISH), tempFile.getAbsolutePath());
+        // All of the changes are made with a single request to the helper.
+        if (!changes.isEmpty()) {
+            try (final LatencyTrace.Section section = Application.getLatencyTrace().begin("WgQuickBackend batch: wg-quick")) {
+                final int[] statuses;
+                try {
+                    statuses = helper.setStates(changes);
+                } catch (final IOException e) {
+                    section.fail();
+                    throw e;
+                }
+                for (int i = 0; i < statuses.length; ++i) {
+                    if (statuses[i] != 0) {
+                        section.fail();
+                        Log.e(TAG, "Unable to change state of tunnel " + names.get(i) + ": status " + statuses[i]);
+                    }
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "Unable to change state of tunnels", e);
+            } finally {
+                // Even failed transitions may have created or removed interfaces.
+                invalidateInterfaces();
+            }
+        }
+        final Set<String> nowRunning = fetchInterfaces();
+        final Map<Tunnel, State> newStates = new HashMap<>(states.size());
+        for (final Tunnel tunnel : states.keySet())
+            newStates.put(tunnel, State.of(nowRunning.contains(tunnel.getName())));
+        return newStates;
+    }
+
+    private void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final State state) throws Exception {
         if (state == State.UP)
-            command = "cat /sys/module/wireguard/version && " + command;
-        final int result = Application.getRootShell().run(null, command);
-        // noinspection ResultOfMethodCallIgnored
-        tempFile.delete();
-        if (result != 0)
-            throw new Exception(context.getResources().getString(R.string.tunnel_config_error));
+            Objects.requireNonNull(config, "Trying to set state with a null config");
+        final LatencyTrace trace = Application.getLatencyTrace();
+        final String phase = state == State.UP ? "WgQuickBackend up" : "WgQuickBackend down";
+        try (final LatencyTrace.Section section = trace.begin(phase)) {
+            final String wgQuickConfig;
+            try (final LatencyTrace.Section ignored = trace.begin(phase + ": serialize config")) {
+                wgQuickConfig = config != null ? config.toWgQuickString() : DOWN_CONFIG;
+            }
+            try (final LatencyTrace.Section wgQuick = trace.begin(phase + ": wg-quick")) {
+                try {
+                    helper.setState(tunnel.getName(), state == State.UP, wgQuickConfig);
+                } catch (final IOException e) {
+                    // A failed run often ends early, so it is timed apart from the ones that work.
+                    section.fail();
+                    wgQuick.fail();
+                    throw e;
+                }
+            }
+        } catch (final RootHelper.StatusException e) {
+            throw new Exception(context.getResources().getString(R.string.tunnel_config_error), e);
+        } finally {
+            // Even a failed transition may have created or removed the interface.
+            invalidateInterfaces();
+        }
     }
 }
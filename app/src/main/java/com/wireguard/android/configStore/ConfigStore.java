@@ -5,6 +5,8 @@
 
 package com.wireguard.android.configStore;
 
+import android.support.annotation.Nullable;
+
 import com.wireguard.config.Config;
 
 import java.util.Set;
@@ -64,4 +66,24 @@ public interface ConfigStore {
      * @return The configuration that was actually saved to persistent storage.
      */
     Config save(final String name, final Config config) throws Exception;
+
+    /**
+     * Start or stop watching persistent storage for changes made outside of this store, such as
+     * files added by another process. Changes made through this store are not reported.
+     *
+     * @param listener The listener to notify of external changes, or null to stop watching.
+     */
+    void setChangeListener(@Nullable final ChangeListener listener);
+
+    /**
+     * Receives notifications about configurations changed outside of the store. Callbacks may run
+     * on an arbitrary thread.
+     */
+    interface ChangeListener {
+        void onConfigAdded(String name);
+
+        void onConfigModified(String name);
+
+        void onConfigRemoved(String name);
+    }
 }
@@ -6,6 +6,8 @@
 package com.wireguard.android.configStore;
 
 import android.content.Context;
+import android.os.FileObserver;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.wireguard.android.R;
@@ -18,7 +20,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import java9.util.stream.Collectors;
@@ -30,22 +34,37 @@ import java9.util.stream.Stream;
 
 public final class FileConfigStore implements ConfigStore {
     private static final String TAG = "WireGuard/" + FileConfigStore.class.getSimpleName();
+    private static final int WATCH_MASK = FileObserver.CLOSE_WRITE | FileObserver.DELETE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
 
     private final Context context;
+    /* Last known state of each file, used to filter out events caused by this store itself. */
+    private final Map<String, FileStamp> knownFiles = new HashMap<>();
+    @Nullable private ConfigObserver observer;
 
     public FileConfigStore(final Context context) {
         this.context = context;
     }
 
+    @Nullable
+    private static String nameFor(@Nullable final String fileName) {
+        if (fileName == null || !fileName.endsWith(".conf"))
+            return null;
+        return fileName.substring(0, fileName.length() - ".conf".length());
+    }
+
     @Override
     public Config create(final String name, final Config config) throws IOException {
         Log.d(TAG, "Creating configuration for tunnel " + name);
         final File file = fileFor(name);
-        if (!file.createNewFile())
-            throw new IOException(String.format(Locale.getDefault(),
-                    context.getResources().getString(R.string.config_file_exists_error), file.getName()));
-        try (final FileOutputStream stream = new FileOutputStream(file, false)) {
-            stream.write(config.toWgQuickString().getBytes(StandardCharsets.UTF_8));
+        synchronized (knownFiles) {
+            if (!file.createNewFile())
+                throw new IOException(String.format(Locale.getDefault(),
+                        context.getResources().getString(R.string.config_file_exists_error), file.getName()));
+            try (final FileOutputStream stream = new FileOutputStream(file, false)) {
+                stream.write(config.toWgQuickString().getBytes(StandardCharsets.UTF_8));
+            }
+            knownFiles.put(name, FileStamp.of(file));
         }
         return config;
     }
@@ -54,17 +73,26 @@ public final class FileConfigStore implements ConfigStore {
     public void delete(final String name) throws IOException {
         Log.d(TAG, "Deleting configuration for tunnel " + name);
         final File file = fileFor(name);
-        if (!file.delete())
-            throw new IOException(String.format(Locale.getDefault(),
-                    context.getResources().getString(R.string.config_delete_error), file.getName()));
+        synchronized (knownFiles) {
+            if (!file.delete())
+                throw new IOException(String.format(Locale.getDefault(),
+                        context.getResources().getString(R.string.config_delete_error), file.getName()));
+            knownFiles.remove(name);
+        }
     }
 
     @Override
     public Set<String> enumerate() {
-        return Stream.of(context.fileList())
+        final Set<String> names = Stream.of(context.fileList())
                 .filter(name -> name.endsWith(".conf"))
                 .map(name -> name.substring(0, name.length() - ".conf".length()))
                 .collect(Collectors.toUnmodifiableSet());
+        synchronized (knownFiles) {
+            knownFiles.clear();
+            for (final String name : names)
+                knownFiles.put(name, FileStamp.of(fileFor(name)));
+        }
+        return names;
     }
 
     private File fileFor(final String name) {
@@ -78,19 +106,61 @@ public final class FileConfigStore implements ConfigStore {
         }
     }
 
+    private void onFileEvent(final int event, @Nullable final String fileName) {
+        final String name = nameFor(fileName);
+        if (name == null)
+            return;
+        final File file = fileFor(name);
+        final ChangeListener listener;
+        final FileStamp previous;
+        synchronized (knownFiles) {
+            if (observer == null)
+                return;
+            listener = observer.listener;
+            previous = knownFiles.get(name);
+            if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                // The file may have been replaced again before this event was delivered.
+                if (previous == null || file.exists())
+                    return;
+                knownFiles.remove(name);
+            } else {
+                if (!file.isFile())
+                    return;
+                final FileStamp current = FileStamp.of(file);
+                if (current.equals(previous))
+                    return;
+                knownFiles.put(name, current);
+            }
+        }
+        if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            Log.d(TAG, "Configuration for tunnel " + name + " removed externally");
+            listener.onConfigRemoved(name);
+        } else if (previous != null) {
+            Log.d(TAG, "Configuration for tunnel " + name + " modified externally");
+            listener.onConfigModified(name);
+        } else {
+            Log.d(TAG, "Configuration for tunnel " + name + " added externally");
+            listener.onConfigAdded(name);
+        }
+    }
+
     @Override
     public void rename(final String name, final String replacement) throws IOException {
         Log.d(TAG, "Renaming configuration for tunnel " + name + " to " + replacement);
         final File file = fileFor(name);
         final File replacementFile = fileFor(replacement);
-        if (!replacementFile.createNewFile())
-            throw new IOException(String.format(Locale.getDefault(),
-                    context.getResources().getString(R.string.config_exists_error), replacement));
-        if (!file.renameTo(replacementFile)) {
-            if (!replacementFile.delete())
-                Log.w(TAG, "Couldn't delete marker file for new name " + replacement);
-            throw new IOException(String.format(Locale.getDefault(),
-                    context.getResources().getString(R.string.config_rename_error), file.getName()));
+        synchronized (knownFiles) {
+            if (!replacementFile.createNewFile())
+                throw new IOException(String.format(Locale.getDefault(),
+                        context.getResources().getString(R.string.config_exists_error), replacement));
+            if (!file.renameTo(replacementFile)) {
+                if (!replacementFile.delete())
+                    Log.w(TAG, "Couldn't delete marker file for new name " + replacement);
+                throw new IOException(String.format(Locale.getDefault(),
+                        context.getResources().getString(R.string.config_rename_error), file.getName()));
+            }
+            knownFiles.remove(name);
+            knownFiles.put(replacement, FileStamp.of(replacementFile));
         }
     }
 
@@ -98,12 +168,70 @@ public final class FileConfigStore implements ConfigStore {
     public Config save(final String name, final Config config) throws IOException {
         Log.d(TAG, "Saving configuration for tunnel " + name);
         final File file = fileFor(name);
-        if (!file.isFile())
-            throw new FileNotFoundException(String.format(Locale.getDefault(),
-                    context.getResources().getString(R.string.config_not_found_error), file.getName()));
-        try (final FileOutputStream stream = new FileOutputStream(file, false)) {
-            stream.write(config.toWgQuickString().getBytes(StandardCharsets.UTF_8));
+        synchronized (knownFiles) {
+            if (!file.isFile())
+                throw new FileNotFoundException(String.format(Locale.getDefault(),
+                        context.getResources().getString(R.string.config_not_found_error), file.getName()));
+            try (final FileOutputStream stream = new FileOutputStream(file, false)) {
+                stream.write(config.toWgQuickString().getBytes(StandardCharsets.UTF_8));
+            }
+            knownFiles.put(name, FileStamp.of(file));
         }
         return config;
     }
+
+    @Override
+    public void setChangeListener(@Nullable final ChangeListener listener) {
+        synchronized (knownFiles) {
+            if (observer != null) {
+                observer.stopWatching();
+                observer = null;
+            }
+            if (listener == null)
+                return;
+            observer = new ConfigObserver(context.getFilesDir(), listener);
+            observer.startWatching();
+        }
+    }
+
+    private static final class FileStamp {
+        private final long lastModified;
+        private final long length;
+
+        private FileStamp(final long lastModified, final long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        static FileStamp of(final File file) {
+            return new FileStamp(file.lastModified(), file.length());
+        }
+
+        @Override
+        public boolean equals(@Nullable final Object obj) {
+            if (!(obj instanceof FileStamp))
+                return false;
+            final FileStamp other = (FileStamp) obj;
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lastModified ^ (lastModified >>> 32)) * 31 + (int) length;
+        }
+    }
+
+    private final class ConfigObserver extends FileObserver {
+        private final ChangeListener listener;
+
+        ConfigObserver(final File directory, final ChangeListener listener) {
+            super(directory.getAbsolutePath(), WATCH_MASK);
+            this.listener = listener;
+        }
+
+        @Override
+        public void onEvent(final int event, @Nullable final String path) {
+            onFileEvent(event, path);
+        }
+    }
 }
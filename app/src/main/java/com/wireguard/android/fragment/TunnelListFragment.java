@@ -336,6 +336,17 @@ public class TunnelListFragment extends BaseFragment {
             Snackbar.make(binding.mainContainer, message, Snackbar.LENGTH_LONG).show();
     }
 
+    private void onTunnelToggleFinished(@SuppressWarnings("unused") final Void ignored,
+                                        @Nullable final Throwable throwable) {
+        if (throwable == null)
+            return;
+        final String error = ExceptionLoggers.unwrapMessage(throwable);
+        final String message = getString(R.string.toggle_error, error);
+        Log.e(TAG, message, throwable);
+        if (binding != null)
+            Snackbar.make(binding.mainContainer, message, Snackbar.LENGTH_LONG).show();
+    }
+
     @Override
     public void onViewStateRestored(@Nullable final Bundle savedInstanceState) {
         super.onViewStateRestored(savedInstanceState);
@@ -348,6 +359,8 @@ public class TunnelListFragment extends BaseFragment {
         Application.getTunnelManager().getTunnels().thenAccept(binding::setTunnels);
         binding.setRowConfigurationHandler((ObservableKeyedRecyclerViewAdapter.RowConfigurationHandler<TunnelListItemBinding, Tunnel>) (binding, tunnel, position) -> {
             binding.setFragment(this);
+            // Rows are configured as they are about to become visible.
+            Application.getTunnelManager().prioritizeConfigLoad(tunnel);
             binding.getRoot().setOnClickListener(clicked -> {
                 if (actionMode == null) {
                     setSelectedTunnel(tunnel);
@@ -401,6 +414,18 @@ public class TunnelListFragment extends BaseFragment {
                     checkedItems.clear();
                     mode.finish();
                     return true;
+                case R.id.menu_action_toggle:
+                    final Iterable<Integer> toggledItems = new HashSet<>(checkedItems);
+                    Application.getTunnelManager().getTunnels().thenAccept(tunnels -> {
+                        final Collection<Tunnel> tunnelsToToggle = new ArrayList<>();
+                        for (final Integer position : toggledItems)
+                            tunnelsToToggle.add(tunnels.get(position));
+                        Application.getTunnelManager().setTunnelStates(tunnelsToToggle, Tunnel.State.TOGGLE)
+                                .whenComplete(TunnelListFragment.this::onTunnelToggleFinished);
+                    });
+                    checkedItems.clear();
+                    mode.finish();
+                    return true;
                 case R.id.menu_action_select_all:
                     Application.getTunnelManager().getTunnels().thenAccept(tunnels -> {
                         for (int i = 0; i < tunnels.size(); ++i) {
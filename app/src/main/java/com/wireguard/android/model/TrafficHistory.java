@@ -0,0 +1,300 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.wireguard.android.model.Tunnel.PeerStatistics;
+import com.wireguard.android.model.Tunnel.Statistics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retains the traffic of each tunnel, and of each of its peers, over time. Every series has a
+ * fixed size, so memory use is bounded however long tunnels run. Each tunnel always keeps its own
+ * series, but only the most recently used {@link #MAX_PEER_SERIES} peer series are kept across all
+ * tunnels, so a tunnel with many peers can't push out the history of the others. Samples are the
+ * byte counters reported by the backend; the history stores the difference between consecutive
+ * samples.
+ */
+
+public final class TrafficHistory {
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_PEER_SERIES = 64;
+    /* This character can be neither part of a tunnel name nor part of a base64 key. */
+    private static final char PEER_SEPARATOR = ':';
+    private static final String TAG = "WireGuard/" + TrafficHistory.class.getSimpleName();
+
+    private final File file;
+    /* The last counters of each peer of each tunnel, kept apart so evicting a series loses none. */
+    private final Map<String, Map<String, Counters>> peerCounters = new HashMap<>();
+    private final Map<String, TrafficSeries> peerSeries = new PeerSeriesMap();
+    private final Map<String, TrafficSeries> tunnelSeries = new LinkedHashMap<>();
+    private boolean isDirty;
+
+    TrafficHistory(final File file) {
+        this.file = file;
+    }
+
+    private static long delta(final long counter, final long previous) {
+        if (previous < 0)
+            return 0;
+        // Counters restart from zero when the tunnel is brought back up.
+        return counter >= previous ? counter - previous : counter;
+    }
+
+    private static TrafficSeries getOrCreate(final Map<String, TrafficSeries> series, final String key) {
+        TrafficSeries value = series.get(key);
+        if (value == null) {
+            value = new TrafficSeries();
+            series.put(key, value);
+        }
+        return value;
+    }
+
+    private static boolean isPeerKey(final String key) {
+        return key.indexOf(PEER_SEPARATOR) >= 0;
+    }
+
+    private static String key(final String tunnel, @Nullable final String publicKey) {
+        return publicKey != null ? tunnel + PEER_SEPARATOR + publicKey : tunnel;
+    }
+
+    @Nullable
+    private TrafficSeries getSeries(final String tunnel, @Nullable final String publicKey) {
+        return publicKey != null ? peerSeries.get(key(tunnel, publicKey)) : tunnelSeries.get(tunnel);
+    }
+
+    /**
+     * Get the bytes received in each interval at a resolution, oldest first and ending with the
+     * current interval.
+     *
+     * @param tunnel    The name of the tunnel.
+     * @param publicKey The base64 public key of a peer, or null for the whole tunnel.
+     */
+    public synchronized long[] getRxBytes(final String tunnel, @Nullable final String publicKey,
+                                          final Resolution resolution) {
+        final TrafficSeries value = getSeries(tunnel, publicKey);
+        if (value == null)
+            return new long[resolution.getCapacity()];
+        return value.get(resolution, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Get the bytes sent in each interval at a resolution, oldest first and ending with the
+     * current interval.
+     *
+     * @param tunnel    The name of the tunnel.
+     * @param publicKey The base64 public key of a peer, or null for the whole tunnel.
+     */
+    public synchronized long[] getTxBytes(final String tunnel, @Nullable final String publicKey,
+                                          final Resolution resolution) {
+        final TrafficSeries value = getSeries(tunnel, publicKey);
+        if (value == null)
+            return new long[resolution.getCapacity()];
+        return value.get(resolution, System.currentTimeMillis(), false);
+    }
+
+    /**
+     * Read the history saved by {@link #save()}. Series recorded since startup take precedence.
+     */
+    synchronized void load() {
+        try (final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FORMAT_VERSION)
+                return;
+            for (int count = input.readInt(); count > 0; --count) {
+                final String key = input.readUTF();
+                final TrafficSeries value = new TrafficSeries();
+                value.read(input);
+                final Map<String, TrafficSeries> series = isPeerKey(key) ? peerSeries : tunnelSeries;
+                if (!series.containsKey(key))
+                    series.put(key, value);
+            }
+        } catch (final FileNotFoundException ignored) {
+            // Nothing has been saved yet.
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to load traffic history", e);
+        }
+    }
+
+    /**
+     * Add a sample of the statistics of a running tunnel, or note that it has stopped.
+     */
+    synchronized void record(final String tunnel, @Nullable final Statistics statistics,
+                             final long time) {
+        final Map<String, Counters> previous = peerCounters.get(tunnel);
+        if (statistics == null) {
+            // The counters of all peers start from zero next time.
+            if (previous != null) {
+                for (final Counters counters : previous.values()) {
+                    counters.rx = 0;
+                    counters.tx = 0;
+                }
+            }
+            return;
+        }
+        // The tunnel's total is the sum of peer deltas, so removing a peer doesn't skew it.
+        final Map<String, Counters> current = new HashMap<>(statistics.getPeers().size());
+        long rxTotal = 0;
+        long txTotal = 0;
+        for (final Map.Entry<String, PeerStatistics> entry : statistics.getPeers().entrySet()) {
+            final PeerStatistics peer = entry.getValue();
+            final Counters counters = previous != null ? previous.get(entry.getKey()) : null;
+            final long rx = delta(peer.getRxBytes(), counters != null ? counters.rx : -1);
+            final long tx = delta(peer.getTxBytes(), counters != null ? counters.tx : -1);
+            current.put(entry.getKey(), new Counters(peer.getRxBytes(), peer.getTxBytes()));
+            getOrCreate(peerSeries, key(tunnel, entry.getKey())).add(time, rx, tx);
+            rxTotal += rx;
+            txTotal += tx;
+        }
+        peerCounters.put(tunnel, current);
+        getOrCreate(tunnelSeries, tunnel).add(time, rxTotal, txTotal);
+        isDirty = true;
+    }
+
+    /**
+     * Forget all history of a tunnel, for instance because it has been deleted.
+     */
+    synchronized void remove(final String tunnel) {
+        peerCounters.remove(tunnel);
+        if (tunnelSeries.remove(tunnel) != null)
+            isDirty = true;
+        final Iterator<String> keys = peerSeries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(tunnel + PEER_SEPARATOR)) {
+                keys.remove();
+                isDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Move the history of a tunnel to its new name.
+     */
+    synchronized void rename(final String from, final String to) {
+        final Map<String, Counters> counters = peerCounters.remove(from);
+        if (counters != null)
+            peerCounters.put(to, counters);
+        final TrafficSeries total = tunnelSeries.remove(from);
+        if (total != null) {
+            tunnelSeries.put(to, total);
+            isDirty = true;
+        }
+        final List<String> keys = new ArrayList<>();
+        for (final String key : peerSeries.keySet()) {
+            if (key.startsWith(from + PEER_SEPARATOR))
+                keys.add(key);
+        }
+        for (final String key : keys)
+            peerSeries.put(to + key.substring(from.length()), peerSeries.remove(key));
+        isDirty |= !keys.isEmpty();
+    }
+
+    /**
+     * Write the history to storage if it has changed. The file is replaced atomically.
+     */
+    synchronized void save() {
+        if (!isDirty)
+            return;
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(tunnelSeries.size() + peerSeries.size());
+            for (final Map.Entry<String, TrafficSeries> entry : tunnelSeries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                entry.getValue().write(output);
+            }
+            for (final Map.Entry<String, TrafficSeries> entry : peerSeries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                entry.getValue().write(output);
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to save traffic history", e);
+            return;
+        }
+        if (tempFile.renameTo(file))
+            isDirty = false;
+        else
+            Log.w(TAG, "Unable to replace " + file);
+    }
+
+    /**
+     * The granularities at which history is kept, and how far back each one reaches.
+     */
+    public enum Resolution {
+        SECONDS(1000, 300),
+        MINUTES(60 * 1000, 360),
+        HOURS(60 * 60 * 1000, 336);
+
+        private final int capacity;
+        private final long interval;
+
+        Resolution(final long interval, final int capacity) {
+            this.interval = interval;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the number of intervals retained
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return the length of each interval in milliseconds
+         */
+        public long getInterval() {
+            return interval;
+        }
+    }
+
+    /*
+     * The cumulative counters of a peer at the previous sample.
+     */
+    private static final class Counters {
+        long rx;
+        long tx;
+
+        Counters(final long rx, final long tx) {
+            this.rx = rx;
+            this.tx = tx;
+        }
+    }
+
+    /*
+     * Keeps entries in access order and drops the least recently used one when full.
+     */
+    private static final class PeerSeriesMap extends LinkedHashMap<String, TrafficSeries> {
+        private static final long serialVersionUID = 1L;
+
+        PeerSeriesMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, TrafficSeries> eldest) {
+            return size() > MAX_PEER_SERIES;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import com.wireguard.android.model.TrafficHistory.Resolution;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Byte counts for one tunnel or peer, kept at every {@link Resolution} in ring buffers of fixed
+ * size. Each sample is added to the current bucket of every resolution, so coarser resolutions are
+ * always the sums of finer ones and no separate downsampling pass is needed. This class is not
+ * thread-safe; {@link TrafficHistory} guards all access to it.
+ */
+
+final class TrafficSeries {
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    /* The most recent bucket number written at each resolution. */
+    private final long[] heads = new long[RESOLUTIONS.length];
+    private final long[][] rx = new long[RESOLUTIONS.length][];
+    private final long[][] tx = new long[RESOLUTIONS.length][];
+
+    TrafficSeries() {
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            rx[i] = new long[RESOLUTIONS[i].getCapacity()];
+            tx[i] = new long[RESOLUTIONS[i].getCapacity()];
+        }
+    }
+
+    private static long readVarLong(final DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = input.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable-length number");
+    }
+
+    private static void writeVarLong(final DataOutput output, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            output.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    void add(final long time, final long rxBytes, final long txBytes) {
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            final int capacity = RESOLUTIONS[i].getCapacity();
+            final long bucket = time / RESOLUTIONS[i].getInterval();
+            if (bucket > heads[i]) {
+                // Clear the buckets skipped since the last sample, but never more than all of them.
+                for (long b = Math.max(heads[i] + 1, bucket - capacity + 1); b <= bucket; ++b) {
+                    rx[i][(int) (b % capacity)] = 0;
+                    tx[i][(int) (b % capacity)] = 0;
+                }
+                heads[i] = bucket;
+            } else if (bucket <= heads[i] - capacity) {
+                // The clock went back further than this resolution covers.
+                continue;
+            }
+            rx[i][(int) (bucket % capacity)] += rxBytes;
+            tx[i][(int) (bucket % capacity)] += txBytes;
+        }
+    }
+
+    /**
+     * Copy the buckets at a resolution, oldest first, with the last element holding the bucket
+     * that contains the given time.
+     */
+    long[] get(final Resolution resolution, final long time, final boolean isRx) {
+        final int i = resolution.ordinal();
+        final int capacity = resolution.getCapacity();
+        final long[] source = isRx ? rx[i] : tx[i];
+        final long[] values = new long[capacity];
+        final long last = time / resolution.getInterval();
+        for (int j = 0; j < capacity; ++j) {
+            final long b = last - capacity + 1 + j;
+            if (b <= heads[i] && b > heads[i] - capacity && b >= 0)
+                values[j] = source[(int) (b % capacity)];
+        }
+        return values;
+    }
+
+    void read(final DataInput input) throws IOException {
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            heads[i] = input.readLong();
+            for (int j = 0; j < rx[i].length; ++j)
+                rx[i][j] = readVarLong(input);
+            for (int j = 0; j < tx[i].length; ++j)
+                tx[i][j] = readVarLong(input);
+        }
+    }
+
+    void write(final DataOutput output) throws IOException {
+        // Most buckets are zero or small, so variable-length numbers keep the file compact.
+        for (int i = 0; i < RESOLUTIONS.length; ++i) {
+            output.writeLong(heads[i]);
+            for (final long value : rx[i])
+                writeVarLong(output, value);
+            for (final long value : tx[i])
+                writeVarLong(output, value);
+        }
+    }
+}
@@ -7,6 +7,7 @@ package com.wireguard.android.model;
 
 import android.databinding.BaseObservable;
 import android.databinding.Bindable;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 
 import com.wireguard.android.BR;
@@ -14,6 +15,9 @@ import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.config.Config;
 import com.wireguard.util.Keyed;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
 import java9.util.concurrent.CompletableFuture;
@@ -28,7 +32,7 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
     private static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_=+.-]{1,15}");
 
     private final TunnelManager manager;
-    @Nullable private Config config;
+    @Nullable private volatile Config config;
     private String name;
     private State state;
     @Nullable private Statistics statistics;
@@ -63,11 +67,25 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         return CompletableFuture.completedFuture(config);
     }
 
+    /**
+     * Load the configuration, completing the returned stage on {@code completionExecutor} rather
+     * than on the main thread.
+     */
+    public CompletionStage<Config> getConfigAsync(final Executor completionExecutor) {
+        if (config == null)
+            return manager.getTunnelConfig(this, completionExecutor);
+        return CompletableFuture.completedFuture(config);
+    }
+
     @Override
     public String getKey() {
         return name;
     }
 
+    boolean hasConfig() {
+        return config != null;
+    }
+
     @Bindable
     public String getName() {
         return name;
@@ -85,15 +103,13 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
     @Bindable
     @Nullable
     public Statistics getStatistics() {
-        // FIXME: Check age of statistics.
-        if (statistics == null)
-            TunnelManager.getTunnelStatistics(this).whenComplete(ExceptionLoggers.E);
+        if (statistics == null || statistics.isStale())
+            manager.refreshTunnelStatistics();
         return statistics;
     }
 
     public CompletionStage<Statistics> getStatisticsAsync() {
-        // FIXME: Check age of statistics.
-        if (statistics == null)
+        if (statistics == null || statistics.isStale())
             return TunnelManager.getTunnelStatistics(this);
         return CompletableFuture.completedFuture(statistics);
     }
@@ -104,6 +120,19 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         return config;
     }
 
+    Config onConfigLoaded(final Config config) {
+        // Observers are not notified here, since this may run off the main thread. Anything that
+        // observed a null config has already requested its own load, which will notify them.
+        this.config = config;
+        return config;
+    }
+
+    void onConfigInvalidated() {
+        // Only reload configurations that something has already asked for.
+        if (config != null)
+            manager.getTunnelConfig(this).whenComplete(ExceptionLoggers.E);
+    }
+
     public String onNameChanged(final String name) {
         this.name = name;
         notifyPropertyChanged(BR.name);
@@ -120,6 +149,7 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
 
     @Nullable
     Statistics onStatisticsChanged(@Nullable final Statistics statistics) {
+        manager.getTrafficHistory().record(name, statistics, System.currentTimeMillis());
         this.statistics = statistics;
         notifyPropertyChanged(BR.statistics);
         return statistics;
@@ -153,6 +183,92 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         }
     }
 
+    /**
+     * Traffic counters and handshake state for a single peer of a running tunnel.
+     */
+    public static final class PeerStatistics {
+        @Nullable private final String endpoint;
+        private final long lastHandshakeTime;
+        private final long rxBytes;
+        private final long txBytes;
+
+        public PeerStatistics(@Nullable final String endpoint, final long lastHandshakeTime,
+                              final long rxBytes, final long txBytes) {
+            this.endpoint = endpoint;
+            this.lastHandshakeTime = lastHandshakeTime;
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+        }
+
+        /**
+         * @return the address the peer was last seen at, or null if it has never been contacted
+         */
+        @Nullable
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return the wall clock time of the latest handshake in milliseconds, or 0 if there has
+         * never been one
+         */
+        public long getLastHandshakeTime() {
+            return lastHandshakeTime;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+    }
+
+    /**
+     * A snapshot of the per-peer statistics of a tunnel, keyed by base64 public key. Snapshots
+     * older than {@link #MAX_AGE_MS} are refreshed when next requested, so polling more often than
+     * that does not reach the backend.
+     */
     public static class Statistics extends BaseObservable {
+        private static final long MAX_AGE_MS = 1000;
+
+        private final Map<String, PeerStatistics> peers;
+        private final long timestamp = SystemClock.elapsedRealtime();
+
+        public Statistics() {
+            this(Collections.emptyMap());
+        }
+
+        public Statistics(final Map<String, PeerStatistics> peers) {
+            this.peers = Collections.unmodifiableMap(peers);
+        }
+
+        @Nullable
+        public PeerStatistics getPeer(final String publicKey) {
+            return peers.get(publicKey);
+        }
+
+        public Map<String, PeerStatistics> getPeers() {
+            return peers;
+        }
+
+        public long getTotalRxBytes() {
+            long total = 0;
+            for (final PeerStatistics peer : peers.values())
+                total += peer.rxBytes;
+            return total;
+        }
+
+        public long getTotalTxBytes() {
+            long total = 0;
+            for (final PeerStatistics peer : peers.values())
+                total += peer.txBytes;
+            return total;
+        }
+
+        boolean isStale() {
+            return SystemClock.elapsedRealtime() - timestamp > MAX_AGE_MS;
+        }
     }
 }
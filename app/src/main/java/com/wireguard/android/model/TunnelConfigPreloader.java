@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.configStore.ConfigStore;
+import com.wireguard.android.util.AsyncWorker;
+import com.wireguard.config.Config;
+import com.wireguard.config.Peer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Loads tunnel configurations in the background after startup, so that opening a tunnel or
+ * toggling it does not have to wait for file I/O and parsing. Only one configuration is loaded at
+ * a time, in the tunnel's own worker lane. Tunnels can be moved to the front of the queue while it
+ * runs, and preloading stops once the estimated size of the loaded configurations exceeds a fixed
+ * fraction of the heap.
+ */
+
+final class TunnelConfigPreloader {
+    private static final int HEAP_FRACTION = 64;
+    private static final String TAG = "WireGuard/" + TunnelConfigPreloader.class.getSimpleName();
+
+    private final long budget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+    private final ConfigStore configStore;
+    private final Deque<Tunnel> queue = new ArrayDeque<>();
+    private boolean isLoading;
+    private long used;
+
+    TunnelConfigPreloader(final ConfigStore configStore) {
+        this.configStore = configStore;
+    }
+
+    /* Rough number of bytes retained by a parsed configuration. */
+    private static long estimateSize(final Config config) {
+        long size = 1024 + 64 * config.getInterface().getAddresses().size();
+        for (final Peer peer : config.getPeers())
+            size += 256 + 96 * peer.getAllowedIps().size();
+        return size;
+    }
+
+    /**
+     * Stop preloading. Configurations that are already loaded are kept.
+     */
+    synchronized void cancel() {
+        if (!queue.isEmpty())
+            Log.d(TAG, "Cancelling preload of " + queue.size() + " configurations");
+        queue.clear();
+    }
+
+    private void loadNext() {
+        final Tunnel tunnel;
+        synchronized (this) {
+            tunnel = used < budget ? queue.poll() : null;
+            isLoading = tunnel != null;
+            if (tunnel == null)
+                return;
+        }
+        final AsyncWorker worker = Application.getAsyncWorker();
+        worker.supplyAsync(tunnel.getName(), () -> {
+            // The config may have been loaded on demand while this tunnel was waiting.
+            if (tunnel.hasConfig())
+                return null;
+            return tunnel.onConfigLoaded(configStore.load(tunnel.getName()));
+        }, worker.getWorkerThreadExecutor()).whenComplete((config, e) -> {
+            if (e != null)
+                Log.d(TAG, "Unable to preload configuration for " + tunnel.getName(), e);
+            synchronized (this) {
+                if (config != null)
+                    used += estimateSize(config);
+            }
+            loadNext();
+        });
+    }
+
+    /**
+     * Move a tunnel to the front of the queue, for instance because it has become visible.
+     */
+    synchronized void prioritize(@Nullable final Tunnel tunnel) {
+        if (tunnel == null || !queue.remove(tunnel))
+            return;
+        queue.addFirst(tunnel);
+    }
+
+    /**
+     * Start preloading the given tunnels, in order, but beginning with {@code first} if it is one of
+     * them.
+     */
+    void start(final Iterable<Tunnel> tunnels, @Nullable final Tunnel first) {
+        synchronized (this) {
+            queue.clear();
+            for (final Tunnel tunnel : tunnels) {
+                if (!tunnel.hasConfig())
+                    queue.add(tunnel);
+            }
+            // Loading begins as soon as this returns, so prioritize() afterwards would be too late.
+            prioritize(first);
+            if (isLoading)
+                return;
+        }
+        loadNext();
+    }
+}
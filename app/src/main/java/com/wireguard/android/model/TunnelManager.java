@@ -10,26 +10,40 @@ import android.content.Context;
 import android.content.Intent;
 import android.databinding.BaseObservable;
 import android.databinding.Bindable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.wireguard.android.Application;
 import com.wireguard.android.BR;
 import com.wireguard.android.R;
+import com.wireguard.android.backend.Backend;
 import com.wireguard.android.configStore.ConfigStore;
 import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.AsyncWorker;
 import com.wireguard.android.util.ExceptionLoggers;
+import com.wireguard.android.util.LatencyTrace;
 import com.wireguard.android.util.ObservableSortedKeyedArrayList;
 import com.wireguard.android.util.ObservableSortedKeyedList;
+import com.wireguard.android.util.StartupTrace;
 import com.wireguard.config.Config;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import java9.util.Comparators;
 import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionException;
 import java9.util.concurrent.CompletionStage;
 import java9.util.stream.Collectors;
 import java9.util.stream.StreamSupport;
@@ -41,29 +55,34 @@ import java9.util.stream.StreamSupport;
 public final class TunnelManager extends BaseObservable {
     private static final Comparator<String> COMPARATOR = Comparators.<String>thenComparing(
             String.CASE_INSENSITIVE_ORDER, Comparators.naturalOrder());
-    private static final String KEY_LAST_USED_TUNNEL = "last_used_tunnel";
     private static final String KEY_RESTORE_ON_BOOT = "restore_on_boot";
-    private static final String KEY_RUNNING_TUNNELS = "enabled_configs";
+    private static final String TAG = "WireGuard/" + TunnelManager.class.getSimpleName();
 
     private final CompletableFuture<ObservableSortedKeyedList<String, Tunnel>> completableTunnels = new CompletableFuture<>();
+    private final TunnelConfigPreloader configPreloader;
     private final ConfigStore configStore;
     private final Context context = Application.get();
     private final ArrayList<CompletableFuture<Void>> delayedLoadRestoreTunnels = new ArrayList<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final TunnelStateJournal stateJournal = new TunnelStateJournal(Application.getSharedPreferences(), handler);
+    private final TrafficHistory trafficHistory = new TrafficHistory(new File(context.getFilesDir(), "traffic_history"));
     private final ObservableSortedKeyedList<String, Tunnel> tunnels = new ObservableSortedKeyedArrayList<>(COMPARATOR);
     private boolean haveLoaded;
+    private boolean isRefreshingStatistics;
     @Nullable private Tunnel lastUsedTunnel;
 
     public TunnelManager(final ConfigStore configStore) {
         this.configStore = configStore;
+        configPreloader = new TunnelConfigPreloader(configStore);
     }
 
     static CompletionStage<State> getTunnelState(final Tunnel tunnel) {
-        return Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().getState(tunnel))
+        return Application.getAsyncWorker().supplyAsync(tunnel.getName(), () -> Application.getBackend().getState(tunnel))
                 .thenApply(tunnel::onStateChanged);
     }
 
     static CompletionStage<Statistics> getTunnelStatistics(final Tunnel tunnel) {
-        return Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().getStatistics(tunnel))
+        return Application.getAsyncWorker().supplyAsync(tunnel.getName(), () -> Application.getBackend().getStatistics(tunnel))
                 .thenApply(tunnel::onStatisticsChanged);
     }
 
@@ -73,6 +92,13 @@ public final class TunnelManager extends BaseObservable {
         return tunnel;
     }
 
+    /**
+     * Stop loading configurations in the background, for example because memory is low.
+     */
+    public void cancelConfigPreload() {
+        configPreloader.cancel();
+    }
+
     public CompletionStage<Tunnel> create(final String name, @Nullable final Config config) {
         if (Tunnel.isNameInvalid(name))
             return CompletableFuture.failedFuture(new IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_name)));
@@ -80,7 +106,7 @@ public final class TunnelManager extends BaseObservable {
             final String message = context.getString(R.string.tunnel_error_already_exists, name);
             return CompletableFuture.failedFuture(new IllegalArgumentException(message));
         }
-        return Application.getAsyncWorker().supplyAsync(() -> configStore.create(name, config))
+        return Application.getAsyncWorker().supplyAsync(name, () -> configStore.create(name, config))
                 .thenApply(savedConfig -> addToList(name, savedConfig, State.DOWN));
     }
 
@@ -91,7 +117,7 @@ public final class TunnelManager extends BaseObservable {
         if (wasLastUsed)
             setLastUsedTunnel(null);
         tunnels.remove(tunnel);
-        return Application.getAsyncWorker().runAsync(() -> {
+        return Application.getAsyncWorker().runAsync(tunnel.getName(), () -> {
             if (originalState == State.UP)
                 Application.getBackend().setState(tunnel, State.DOWN);
             try {
@@ -103,8 +129,10 @@ public final class TunnelManager extends BaseObservable {
                 throw e;
             }
         }).whenComplete((x, e) -> {
-            if (e == null)
+            if (e == null) {
+                trafficHistory.remove(tunnel.getName());
                 return;
+            }
             // Failure, put the tunnel back.
             tunnels.add(tunnel);
             if (wasLastUsed)
@@ -119,27 +147,52 @@ public final class TunnelManager extends BaseObservable {
     }
 
     CompletionStage<Config> getTunnelConfig(final Tunnel tunnel) {
-        return Application.getAsyncWorker().supplyAsync(() -> configStore.load(tunnel.getName()))
+        return Application.getAsyncWorker().supplyAsync(tunnel.getName(), () -> configStore.load(tunnel.getName()))
                 .thenApply(tunnel::onConfigChanged);
     }
 
+    CompletionStage<Config> getTunnelConfig(final Tunnel tunnel, final Executor completionExecutor) {
+        final AsyncWorker worker = Application.getAsyncWorker();
+        return worker.supplyAsync(tunnel.getName(), () -> configStore.load(tunnel.getName()), completionExecutor)
+                .thenApply(config -> worker.isMainThread() ? tunnel.onConfigChanged(config) : tunnel.onConfigLoaded(config));
+    }
+
+    public TrafficHistory getTrafficHistory() {
+        return trafficHistory;
+    }
+
     public CompletableFuture<ObservableSortedKeyedList<String, Tunnel>> getTunnels() {
         return completableTunnels;
     }
 
     public void onCreate() {
-        Application.getAsyncWorker().supplyAsync(configStore::enumerate)
-                .thenAcceptBoth(Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().enumerate()), this::onTunnelsLoaded)
-                .whenComplete(ExceptionLoggers.E);
+        final StartupTrace trace = Application.getStartupTrace();
+        Application.getAsyncWorker().runAsync(trafficHistory::load).whenComplete(ExceptionLoggers.E);
+        // Both enumerations run concurrently with each other and with backend detection.
+        Application.getAsyncWorker().supplyAsync(() -> {
+            try (final StartupTrace.Section ignored = trace.begin("ConfigStore.enumerate")) {
+                return configStore.enumerate();
+            }
+        }).thenAcceptBoth(Application.getAsyncWorker().supplyAsync(() -> {
+            final Backend backend = Application.getBackend();
+            try (final StartupTrace.Section ignored = trace.begin("Backend.enumerate")) {
+                return backend.enumerate();
+            }
+        }), this::onTunnelsLoaded).whenComplete((x, e) -> {
+            trace.mark("Tunnels loaded");
+            Log.i(TAG, trace.dump());
+        }).whenComplete(ExceptionLoggers.E);
     }
 
     @SuppressWarnings("unchecked")
     private void onTunnelsLoaded(final Iterable<String> present, final Collection<String> running) {
         for (final String name : present)
             addToList(name, null, running.contains(name) ? State.UP : State.DOWN);
-        final String lastUsedName = Application.getSharedPreferences().getString(KEY_LAST_USED_TUNNEL, null);
+        configStore.setChangeListener(new ConfigChangeListener());
+        final String lastUsedName = stateJournal.getLastUsedTunnel();
         if (lastUsedName != null)
             setLastUsedTunnel(tunnels.get(lastUsedName));
+        configPreloader.start(tunnels, lastUsedTunnel);
         final CompletableFuture<Void>[] toComplete;
         synchronized (delayedLoadRestoreTunnels) {
             haveLoaded = true;
@@ -158,6 +211,14 @@ public final class TunnelManager extends BaseObservable {
         completableTunnels.complete(tunnels);
     }
 
+    /**
+     * Load the configuration for this tunnel ahead of any other background preloading, for example
+     * because it is visible on screen.
+     */
+    public void prioritizeConfigLoad(final Tunnel tunnel) {
+        configPreloader.prioritize(tunnel);
+    }
+
     public void refreshTunnelStates() {
         Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().enumerate())
                 .thenAccept(running -> {
@@ -167,6 +228,31 @@ public final class TunnelManager extends BaseObservable {
                 .whenComplete(ExceptionLoggers.E);
     }
 
+    /**
+     * Fetch statistics for every running tunnel in a single backend call and deliver them to each
+     * tunnel. Requests made while a refresh is already in progress are ignored. Must be called on
+     * the main thread.
+     */
+    public void refreshTunnelStatistics() {
+        if (isRefreshingStatistics)
+            return;
+        final Collection<Tunnel> running = StreamSupport.stream(tunnels)
+                .filter(tunnel -> tunnel.getState() == State.UP)
+                .collect(Collectors.toList());
+        if (running.isEmpty())
+            return;
+        isRefreshingStatistics = true;
+        Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().getStatistics(running))
+                .whenComplete((statistics, e) -> {
+                    isRefreshingStatistics = false;
+                    if (statistics != null) {
+                        for (final Map.Entry<Tunnel, Statistics> entry : statistics.entrySet())
+                            entry.getKey().onStatisticsChanged(entry.getValue());
+                    }
+                })
+                .whenComplete(ExceptionLoggers.E);
+    }
+
     public CompletionStage<Void> restoreState(final boolean force) {
         if (!force && !Application.getSharedPreferences().getBoolean(KEY_RESTORE_ON_BOOT, false))
             return CompletableFuture.completedFuture(null);
@@ -177,21 +263,31 @@ public final class TunnelManager extends BaseObservable {
                 return f;
             }
         }
-        final Set<String> previouslyRunning = Application.getSharedPreferences().getStringSet(KEY_RUNNING_TUNNELS, null);
-        if (previouslyRunning == null)
-            return CompletableFuture.completedFuture(null);
-        return CompletableFuture.allOf(StreamSupport.stream(tunnels)
+        final Set<String> previouslyRunning = stateJournal.getRunningTunnels();
+        return setTunnelStates(StreamSupport.stream(tunnels)
                 .filter(tunnel -> previouslyRunning.contains(tunnel.getName()))
-                .map(tunnel -> setTunnelState(tunnel, State.UP))
-                .toArray(CompletableFuture[]::new));
+                .collect(Collectors.toList()), State.UP);
     }
 
-    public void saveState() {
-        final Set<String> runningTunnels = StreamSupport.stream(tunnels)
-                .filter(tunnel -> tunnel.getState() == State.UP)
-                .map(Tunnel::getName)
-                .collect(Collectors.toUnmodifiableSet());
-        Application.getSharedPreferences().edit().putStringSet(KEY_RUNNING_TUNNELS, runningTunnels).apply();
+    /**
+     * Write the set of running tunnels and the last-used tunnel to persistent storage immediately,
+     * including any changes that are still waiting to be written, together with the traffic
+     * history.
+     *
+     * @param synchronous Whether to wait for both to reach the disk, which is only worth it when
+     *                    the device is shutting down; otherwise traffic history is written in the
+     *                    background.
+     */
+    public void saveState(final boolean synchronous) {
+        // Until the tunnels are loaded, the journal still holds the correct set from last time.
+        if (haveLoaded)
+            updateRunningTunnels();
+        stateJournal.flush(synchronous);
+        // The process may die as soon as a shutdown broadcast returns, taking a background write.
+        if (synchronous)
+            trafficHistory.save();
+        else
+            Application.getAsyncWorker().runAsync(trafficHistory::save).whenComplete(ExceptionLoggers.E);
     }
 
     private void setLastUsedTunnel(@Nullable final Tunnel tunnel) {
@@ -199,14 +295,11 @@ public final class TunnelManager extends BaseObservable {
             return;
         lastUsedTunnel = tunnel;
         notifyPropertyChanged(BR.lastUsedTunnel);
-        if (tunnel != null)
-            Application.getSharedPreferences().edit().putString(KEY_LAST_USED_TUNNEL, tunnel.getName()).apply();
-        else
-            Application.getSharedPreferences().edit().remove(KEY_LAST_USED_TUNNEL).apply();
+        stateJournal.setLastUsedTunnel(tunnel != null ? tunnel.getName() : null);
     }
 
     CompletionStage<Config> setTunnelConfig(final Tunnel tunnel, final Config config) {
-        return Application.getAsyncWorker().supplyAsync(() -> {
+        return Application.getAsyncWorker().supplyAsync(tunnel.getName(), () -> {
             final Config appliedConfig = Application.getBackend().applyConfig(tunnel, config);
             return configStore.save(tunnel.getName(), appliedConfig);
         }).thenApply(tunnel::onConfigChanged);
@@ -220,12 +313,13 @@ public final class TunnelManager extends BaseObservable {
             return CompletableFuture.failedFuture(new IllegalArgumentException(message));
         }
         final State originalState = tunnel.getState();
+        final String originalName = tunnel.getName();
         final boolean wasLastUsed = tunnel == lastUsedTunnel;
         // Make sure nothing touches the tunnel.
         if (wasLastUsed)
             setLastUsedTunnel(null);
         tunnels.remove(tunnel);
-        return Application.getAsyncWorker().supplyAsync(() -> {
+        return Application.getAsyncWorker().supplyAsync(tunnel.getName(), () -> {
             if (originalState == State.UP)
                 Application.getBackend().setState(tunnel, State.DOWN);
             configStore.rename(tunnel.getName(), name);
@@ -237,6 +331,8 @@ public final class TunnelManager extends BaseObservable {
             // On failure, we don't know what state the tunnel might be in. Fix that.
             if (e != null)
                 getTunnelState(tunnel);
+            else
+                trafficHistory.rename(originalName, newName);
             // Add the tunnel back to the manager, under whatever name it thinks it has.
             tunnels.add(tunnel);
             if (wasLastUsed)
@@ -245,16 +341,139 @@ public final class TunnelManager extends BaseObservable {
     }
 
     CompletionStage<State> setTunnelState(final Tunnel tunnel, final State state) {
-        // Ensure the configuration is loaded before trying to use it.
-        return tunnel.getConfigAsync().thenCompose(x ->
-                Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().setState(tunnel, state))
-        ).whenComplete((newState, e) -> {
+        final AsyncWorker worker = Application.getAsyncWorker();
+        final LatencyTrace trace = Application.getLatencyTrace();
+        final long initialPosts = worker.getMainThreadPostCount();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        // Asking for the state a tunnel is already in changes nothing, so it isn't worth timing.
+        final boolean isNoOp = state == tunnel.getState();
+        // Ensure the configuration is loaded before trying to use it. The load completes on the
+        // worker thread, so the state change is queued without a trip through the main thread.
+        return tunnel.getConfigAsync(worker.getWorkerThreadExecutor()).thenCompose(x -> {
+            if (!isNoOp)
+                trace.record("TunnelManager.setTunnelState: load config", SystemClock.elapsedRealtimeNanos() - start);
+            return worker.supplyAsync(tunnel.getName(), () -> {
+                if (isNoOp)
+                    return Application.getBackend().setState(tunnel, state);
+                try (final LatencyTrace.Section section = trace.begin("TunnelManager.setTunnelState: backend")) {
+                    try {
+                        return Application.getBackend().setState(tunnel, state);
+                    } catch (final Exception e) {
+                        section.fail();
+                        throw e;
+                    }
+                }
+            });
+        }).whenCompleteAsync((newState, e) -> {
+            // This spans the worker and main threads, so it has no systrace section of its own.
+            if (!isNoOp)
+                trace.record(e == null ? "TunnelManager.setTunnelState" : "TunnelManager.setTunnelState (failed)",
+                        SystemClock.elapsedRealtimeNanos() - start);
             // Ensure onStateChanged is always called (failure or not), and with the correct state.
             tunnel.onStateChanged(e == null ? newState : tunnel.getState());
             if (e == null && newState == State.UP)
                 setLastUsedTunnel(tunnel);
-            saveState();
-        });
+            updateRunningTunnels();
+            Log.v(TAG, "Setting state of " + tunnel.getName() + " took " +
+                    (worker.getMainThreadPostCount() - initialPosts) + " main thread posts");
+        }, worker.getMainThreadExecutor());
+    }
+
+    /**
+     * Change the state of several tunnels with a single call to the backend.
+     *
+     * @param tunnels The tunnels to change.
+     * @param state   The new state for all of the tunnels: {@code UP}, {@code DOWN}, or
+     *                {@code TOGGLE}.
+     * @return A stage that fails if any of the tunnels could not be changed.
+     */
+    public CompletionStage<Void> setTunnelStates(final Collection<Tunnel> tunnels, final State state) {
+        if (tunnels.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        final AsyncWorker worker = Application.getAsyncWorker();
+        final Map<Tunnel, State> originalStates = new HashMap<>(tunnels.size());
+        final Map<Tunnel, State> requestedStates = new HashMap<>(tunnels.size());
+        for (final Tunnel tunnel : tunnels) {
+            originalStates.put(tunnel, tunnel.getState());
+            requestedStates.put(tunnel, state);
+        }
+        // Ensure all of the configurations are loaded before trying to use them.
+        final CompletableFuture[] configs = StreamSupport.stream(tunnels)
+                .map(tunnel -> tunnel.getConfigAsync(worker.getWorkerThreadExecutor()).toCompletableFuture())
+                .toArray(CompletableFuture[]::new);
+        // Hold the lanes of all of the tunnels, so the batch is ordered with their other operations.
+        final Collection<String> names = StreamSupport.stream(tunnels)
+                .map(Tunnel::getName)
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(configs).thenCompose(x ->
+                worker.supplyAsync(names, () -> Application.getBackend().setStates(requestedStates))
+        ).handleAsync((newStates, e) -> {
+            final Collection<String> failed = new ArrayList<>();
+            for (final Tunnel tunnel : tunnels) {
+                final State newState = newStates != null ? newStates.get(tunnel) : null;
+                // Ensure onStateChanged is always called (failure or not), and with the correct state.
+                tunnel.onStateChanged(newState != null ? newState : tunnel.getState());
+                if (newState == State.UP)
+                    setLastUsedTunnel(tunnel);
+                final State original = originalStates.get(tunnel);
+                if (state == State.TOGGLE ? tunnel.getState() == original : tunnel.getState() != state)
+                    failed.add(tunnel.getName());
+            }
+            updateRunningTunnels();
+            if (e != null)
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            if (!failed.isEmpty())
+                throw new IllegalStateException(context.getString(R.string.tunnel_state_batch_error,
+                        TextUtils.join(", ", failed)));
+            return null;
+        }, worker.getMainThreadExecutor());
+    }
+
+    private void updateRunningTunnels() {
+        final Set<String> runningTunnels = StreamSupport.stream(tunnels)
+                .filter(tunnel -> tunnel.getState() == State.UP)
+                .map(Tunnel::getName)
+                .collect(Collectors.toUnmodifiableSet());
+        stateJournal.setRunningTunnels(runningTunnels);
+    }
+
+    private final class ConfigChangeListener implements ConfigStore.ChangeListener {
+        @Override
+        public void onConfigAdded(final String name) {
+            handler.post(() -> {
+                if (Tunnel.isNameInvalid(name) || tunnels.containsKey(name))
+                    return;
+                getTunnelState(addToList(name, null, State.DOWN)).whenComplete(ExceptionLoggers.E);
+            });
+        }
+
+        @Override
+        public void onConfigModified(final String name) {
+            handler.post(() -> {
+                final Tunnel tunnel = tunnels.get(name);
+                if (tunnel != null)
+                    tunnel.onConfigInvalidated();
+            });
+        }
+
+        @Override
+        public void onConfigRemoved(final String name) {
+            handler.post(() -> {
+                final Tunnel tunnel = tunnels.get(name);
+                if (tunnel == null)
+                    return;
+                final State originalState = tunnel.getState();
+                // Make sure nothing touches the tunnel.
+                if (tunnel == lastUsedTunnel)
+                    setLastUsedTunnel(null);
+                tunnels.remove(tunnel);
+                // Without its config, the tunnel could no longer be controlled, so bring it down.
+                Application.getAsyncWorker().runAsync(name, () -> {
+                    if (originalState == State.UP)
+                        Application.getBackend().setState(tunnel, State.DOWN);
+                }).whenComplete((x, e) -> updateRunningTunnels()).whenComplete(ExceptionLoggers.E);
+            });
+        }
     }
 
     public static final class IntentReceiver extends BroadcastReceiver {
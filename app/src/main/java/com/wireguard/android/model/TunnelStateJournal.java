@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.model;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Coalesces writes of the set of running tunnels and the last-used tunnel to shared preferences.
+ * Changes are held in memory and written together, in the background, a short time after the
+ * first of them, or straight away when {@link #flush(boolean)} is called. The running set is stored
+ * as a single delimited string, which is considerably smaller than a string set once serialized.
+ */
+
+final class TunnelStateJournal {
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final String KEY_LAST_USED_TUNNEL = "last_used_tunnel";
+    private static final String KEY_LEGACY_RUNNING_TUNNELS = "enabled_configs";
+    private static final String KEY_RUNNING_TUNNELS = "running_tunnels";
+    /* This character can never be part of a tunnel name. */
+    private static final String SEPARATOR = ",";
+    private static final String TAG = "WireGuard/" + TunnelStateJournal.class.getSimpleName();
+
+    private final Runnable flushRunnable = () -> write(false);
+    private final Handler handler;
+    private final SharedPreferences preferences;
+    private boolean isDirty;
+    @Nullable private String lastUsedTunnel;
+    private String runningTunnels;
+
+    TunnelStateJournal(final SharedPreferences preferences, final Handler handler) {
+        this.preferences = preferences;
+        this.handler = handler;
+        lastUsedTunnel = preferences.getString(KEY_LAST_USED_TUNNEL, null);
+        final String running = preferences.getString(KEY_RUNNING_TUNNELS, null);
+        if (running != null) {
+            runningTunnels = running;
+        } else {
+            final Set<String> legacy = preferences.getStringSet(KEY_LEGACY_RUNNING_TUNNELS, null);
+            runningTunnels = legacy != null ? encode(legacy) : "";
+            // Rewrite a set saved by an older version in the new format.
+            if (legacy != null)
+                scheduleFlush();
+        }
+    }
+
+    private static String encode(final Collection<String> names) {
+        // Sort so that equal sets always produce equal strings.
+        return TextUtils.join(SEPARATOR, new TreeSet<>(names));
+    }
+
+    /**
+     * Write any pending changes now.
+     *
+     * @param synchronous Whether to wait until they are on disk, rather than only queuing the write
+     *                    as Android does for {@code apply()}, which it completes before the process
+     *                    is stopped in the ordinary way.
+     */
+    void flush(final boolean synchronous) {
+        write(synchronous);
+    }
+
+    @Nullable
+    synchronized String getLastUsedTunnel() {
+        return lastUsedTunnel;
+    }
+
+    synchronized Set<String> getRunningTunnels() {
+        if (runningTunnels.isEmpty())
+            return Collections.emptySet();
+        return new HashSet<>(Arrays.asList(runningTunnels.split(SEPARATOR)));
+    }
+
+    private void scheduleFlush() {
+        // Don't push back an already-scheduled flush, so changes are never delayed for too long.
+        if (isDirty)
+            return;
+        isDirty = true;
+        handler.postDelayed(flushRunnable, FLUSH_DELAY_MS);
+    }
+
+    synchronized void setLastUsedTunnel(@Nullable final String name) {
+        if (TextUtils.equals(name, lastUsedTunnel))
+            return;
+        lastUsedTunnel = name;
+        scheduleFlush();
+    }
+
+    synchronized void setRunningTunnels(final Collection<String> names) {
+        final String encoded = encode(names);
+        if (encoded.equals(runningTunnels))
+            return;
+        runningTunnels = encoded;
+        scheduleFlush();
+    }
+
+    /*
+     * Scheduled writes run on the main thread, so they only queue the write to disk; synchronous
+     * writes are for when the device is shutting down, and don't return until the data is saved.
+     */
+    private synchronized void write(final boolean synchronous) {
+        handler.removeCallbacks(flushRunnable);
+        if (!isDirty)
+            return;
+        isDirty = false;
+        final SharedPreferences.Editor editor = preferences.edit()
+                .putString(KEY_RUNNING_TUNNELS, runningTunnels)
+                .remove(KEY_LEGACY_RUNNING_TUNNELS);
+        if (lastUsedTunnel != null)
+            editor.putString(KEY_LAST_USED_TUNNEL, lastUsedTunnel);
+        else
+            editor.remove(KEY_LAST_USED_TUNNEL);
+        if (!synchronous)
+            editor.apply();
+        else if (!editor.commit())
+            Log.w(TAG, "Unable to save tunnel state");
+    }
+}
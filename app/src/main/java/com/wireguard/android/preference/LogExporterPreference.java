@@ -17,6 +17,8 @@ import android.util.Log;
 
 import com.wireguard.android.Application;
 import com.wireguard.android.R;
+import com.wireguard.android.backend.Backend;
+import com.wireguard.android.backend.GoBackend;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.android.util.FragmentUtils;
 
@@ -25,6 +27,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Preference implementing a button that asynchronously exports logs.
@@ -65,6 +68,15 @@ public class LogExporterPreference extends Preference {
                         throw new Exception(errors.toString());
                     }
                 }
+                // The startup messages may have already been rotated out of the log buffers.
+                try (final FileOutputStream stream = new FileOutputStream(file, true)) {
+                    stream.write(Application.getStartupTrace().dump().getBytes(StandardCharsets.UTF_8));
+                    stream.write(Application.getLatencyTrace().dump().getBytes(StandardCharsets.UTF_8));
+                    // wireguard-go keeps its own log rather than writing to logcat.
+                    final Backend backend = Application.getBackend();
+                    if (backend instanceof GoBackend)
+                        stream.write(((GoBackend) backend).dumpLog().getBytes(StandardCharsets.UTF_8));
+                }
             } catch (final Exception e) {
                 // noinspection ResultOfMethodCallIgnored
                 file.delete();
@@ -18,6 +18,7 @@ import android.util.Log;
 import com.wireguard.android.Application;
 import com.wireguard.android.R;
 import com.wireguard.android.model.Tunnel;
+import com.wireguard.android.util.AsyncWorker;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.android.util.FragmentUtils;
 import com.wireguard.config.Config;
@@ -51,16 +52,19 @@ public class ZipExporterPreference extends Preference {
     }
 
     private void exportZip(final List<Tunnel> tunnels) {
+        final AsyncWorker worker = Application.getAsyncWorker();
+        final long initialPosts = worker.getMainThreadPostCount();
         final List<CompletableFuture<Config>> futureConfigs = new ArrayList<>(tunnels.size());
+        // The configs are only needed by the zip writer, so load them without visiting the main thread.
         for (final Tunnel tunnel : tunnels)
-            futureConfigs.add(tunnel.getConfigAsync().toCompletableFuture());
+            futureConfigs.add(tunnel.getConfigAsync(worker.getWorkerThreadExecutor()).toCompletableFuture());
         if (futureConfigs.isEmpty()) {
             exportZipComplete(null, new IllegalArgumentException(
                     getContext().getResources().getString(R.string.no_tunnels_error)));
             return;
         }
         CompletableFuture.allOf(futureConfigs.toArray(new CompletableFuture[futureConfigs.size()]))
-                .whenComplete((ignored1, exception) -> Application.getAsyncWorker().supplyAsync(() -> {
+                .whenComplete((ignored1, exception) -> worker.supplyAsync(() -> {
                     if (exception != null)
                         throw exception;
                     final File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
@@ -81,7 +85,11 @@ public class ZipExporterPreference extends Preference {
                         throw e;
                     }
                     return file.getAbsolutePath();
-                }).whenComplete(this::exportZipComplete));
+                }).whenComplete((filePath, throwable) -> {
+                    Log.v(TAG, "Exporting " + tunnels.size() + " tunnels took " +
+                            (worker.getMainThreadPostCount() - initialPosts) + " main thread posts");
+                    exportZipComplete(filePath, throwable);
+                }));
     }
 
     private void exportZipComplete(@Nullable final String filePath, @Nullable final Throwable throwable) {
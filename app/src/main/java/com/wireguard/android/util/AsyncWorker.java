@@ -6,46 +6,131 @@
 package com.wireguard.android.util;
 
 import android.os.Handler;
+import android.os.Looper;
 
+import java.util.Collection;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java9.util.concurrent.CompletableFuture;
 import java9.util.concurrent.CompletionStage;
 
 /**
  * Helper class for running asynchronous tasks and ensuring they are completed on the main thread.
+ * Tasks submitted with a key (such as a tunnel name) run in order with respect to other tasks with
+ * the same key; all other tasks may run concurrently. A task submitted with several keys runs in
+ * order with respect to the tasks of every one of them.
+ *
+ * Callers that chain more background work onto a task may instead pass
+ * {@link #getWorkerThreadExecutor()} as the completion executor, which avoids a round trip through
+ * the main thread between the two stages.
  */
 
 public class AsyncWorker {
+    private static final Executor WORKER_THREAD_EXECUTOR = Runnable::run;
+
     private final Executor executor;
     private final Handler handler;
+    private final KeyedExecutor keyedExecutor;
+    private final Executor mainThreadExecutor = new MainThreadExecutor();
+    private final AtomicLong mainThreadPosts = new AtomicLong();
 
     public AsyncWorker(final Executor executor, final Handler handler) {
         this.executor = executor;
         this.handler = handler;
+        keyedExecutor = new KeyedExecutor(executor);
+    }
+
+    /**
+     * Get an executor that runs tasks on the main thread. Tasks submitted from the main thread run
+     * immediately; others are posted to the main looper.
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    /**
+     * Get the total number of tasks that have been posted to the main looper by this worker. This
+     * can be sampled before and after an operation to count its main thread round trips.
+     */
+    public long getMainThreadPostCount() {
+        return mainThreadPosts.get();
+    }
+
+    /**
+     * Get an executor that completes futures directly on the worker thread that produced the result.
+     */
+    public Executor getWorkerThreadExecutor() {
+        return WORKER_THREAD_EXECUTOR;
+    }
+
+    public boolean isMainThread() {
+        return Looper.myLooper() == handler.getLooper();
     }
 
     public CompletionStage<Void> runAsync(final AsyncRunnable<?> runnable) {
+        return runOn(executor, runnable, mainThreadExecutor);
+    }
+
+    public CompletionStage<Void> runAsync(final AsyncRunnable<?> runnable,
+                                          final Executor completionExecutor) {
+        return runOn(executor, runnable, completionExecutor);
+    }
+
+    public CompletionStage<Void> runAsync(final String key, final AsyncRunnable<?> runnable) {
+        return runOn(task -> keyedExecutor.execute(key, task), runnable, mainThreadExecutor);
+    }
+
+    public CompletionStage<Void> runAsync(final String key, final AsyncRunnable<?> runnable,
+                                          final Executor completionExecutor) {
+        return runOn(task -> keyedExecutor.execute(key, task), runnable, completionExecutor);
+    }
+
+    private CompletionStage<Void> runOn(final Executor executor, final AsyncRunnable<?> runnable,
+                                        final Executor completionExecutor) {
         final CompletableFuture<Void> future = new CompletableFuture<>();
         executor.execute(() -> {
             try {
                 runnable.run();
-                handler.post(() -> future.complete(null));
+                completionExecutor.execute(() -> future.complete(null));
             } catch (final Throwable t) {
-                handler.post(() -> future.completeExceptionally(t));
+                completionExecutor.execute(() -> future.completeExceptionally(t));
             }
         });
         return future;
     }
 
     public <T> CompletionStage<T> supplyAsync(final AsyncSupplier<T, ?> supplier) {
+        return supplyOn(executor, supplier, mainThreadExecutor);
+    }
+
+    public <T> CompletionStage<T> supplyAsync(final AsyncSupplier<T, ?> supplier,
+                                              final Executor completionExecutor) {
+        return supplyOn(executor, supplier, completionExecutor);
+    }
+
+    public <T> CompletionStage<T> supplyAsync(final Collection<String> keys, final AsyncSupplier<T, ?> supplier) {
+        return supplyOn(task -> keyedExecutor.executeAll(keys, task), supplier, mainThreadExecutor);
+    }
+
+    public <T> CompletionStage<T> supplyAsync(final String key, final AsyncSupplier<T, ?> supplier) {
+        return supplyOn(task -> keyedExecutor.execute(key, task), supplier, mainThreadExecutor);
+    }
+
+    public <T> CompletionStage<T> supplyAsync(final String key, final AsyncSupplier<T, ?> supplier,
+                                              final Executor completionExecutor) {
+        return supplyOn(task -> keyedExecutor.execute(key, task), supplier, completionExecutor);
+    }
+
+    private <T> CompletionStage<T> supplyOn(final Executor executor, final AsyncSupplier<T, ?> supplier,
+                                            final Executor completionExecutor) {
         final CompletableFuture<T> future = new CompletableFuture<>();
         executor.execute(() -> {
             try {
                 final T result = supplier.get();
-                handler.post(() -> future.complete(result));
+                completionExecutor.execute(() -> future.complete(result));
             } catch (final Throwable t) {
-                handler.post(() -> future.completeExceptionally(t));
+                completionExecutor.execute(() -> future.completeExceptionally(t));
             }
         });
         return future;
@@ -60,4 +145,16 @@ public class AsyncWorker {
     public interface AsyncSupplier<T, E extends Throwable> {
         T get() throws E;
     }
+
+    private final class MainThreadExecutor implements Executor {
+        @Override
+        public void execute(final Runnable command) {
+            if (isMainThread()) {
+                command.run();
+                return;
+            }
+            mainThreadPosts.incrementAndGet();
+            handler.post(command);
+        }
+    }
 }
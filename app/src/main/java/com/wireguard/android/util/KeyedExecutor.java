@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor that runs tasks submitted under the same key strictly in submission order, while tasks
+ * under different keys run concurrently on the underlying executor. Each key only ever occupies
+ * one thread of the underlying executor, so its size bounds the overall concurrency. A task may
+ * also be submitted under several keys at once, in which case it runs after everything already
+ * submitted under any of them, and before anything submitted under any of them later.
+ */
+
+public final class KeyedExecutor {
+    private final Executor executor;
+    private final Map<Object, Lane> lanes = new HashMap<>();
+
+    public KeyedExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(final Object key, final Runnable runnable) {
+        final Lane lane;
+        synchronized (lanes) {
+            final Lane existing = lanes.get(key);
+            if (existing != null) {
+                existing.tasks.add(runnable);
+                return;
+            }
+            lane = new Lane(key);
+            lanes.put(key, lane);
+        }
+        lane.run(runnable);
+    }
+
+    /**
+     * Run a task in the lanes of all of the given keys at once. Each lane waits, without holding a
+     * thread, until the task has reached the front of every other lane and finished running.
+     */
+    public void executeAll(final Collection<?> keys, final Runnable runnable) {
+        final Collection<Object> distinctKeys = new LinkedHashSet<>(keys);
+        if (distinctKeys.isEmpty()) {
+            executor.execute(runnable);
+            return;
+        }
+        final Barrier barrier = new Barrier(distinctKeys.size(), runnable);
+        final List<Lane> idle = new ArrayList<>(distinctKeys.size());
+        // Queue in every lane atomically, so that two such tasks can't wait for each other.
+        synchronized (lanes) {
+            for (final Object key : distinctKeys) {
+                final Lane existing = lanes.get(key);
+                if (existing != null) {
+                    existing.tasks.add(barrier);
+                } else {
+                    final Lane lane = new Lane(key);
+                    lanes.put(key, lane);
+                    idle.add(lane);
+                }
+            }
+        }
+        for (final Lane lane : idle)
+            lane.run(barrier);
+    }
+
+    /*
+     * A task queued in several lanes, which runs once it has arrived at the front of all of them.
+     */
+    private final class Barrier implements Runnable {
+        private final List<Lane> arrived;
+        private final int count;
+        private final Runnable runnable;
+
+        Barrier(final int count, final Runnable runnable) {
+            arrived = new ArrayList<>(count);
+            this.count = count;
+            this.runnable = runnable;
+        }
+
+        void arrive(final Lane lane) {
+            synchronized (this) {
+                arrived.add(lane);
+                if (arrived.size() < count)
+                    return;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } finally {
+                for (final Lane lane : arrived)
+                    lane.next();
+            }
+        }
+    }
+
+    private final class Lane {
+        private final Object key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        Lane(final Object key) {
+            this.key = key;
+        }
+
+        void next() {
+            final Runnable next;
+            synchronized (lanes) {
+                next = tasks.poll();
+                if (next == null)
+                    lanes.remove(key);
+            }
+            if (next != null)
+                run(next);
+        }
+
+        void run(final Runnable runnable) {
+            if (runnable instanceof Barrier) {
+                // The lane stays occupied until the barrier's task has run.
+                ((Barrier) runnable).arrive(this);
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    next();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long the phases of repeated operations, such as bringing tunnels up and down, take.
+ * Each phase has a histogram of its durations with log-linear buckets, so memory use stays fixed
+ * however many times it runs, and percentiles are accurate to within an eighth. Like
+ * {@link StartupTrace}, sections are also emitted as {@code android.os.Trace} sections, and must be
+ * ended on the thread that began them; spans that cross threads are recorded with
+ * {@link #record(String, long)} instead. Sections that end in failure can be recorded as a phase of
+ * their own, so that runs cut short don't make the successful ones look faster than they are.
+ */
+
+public final class LatencyTrace {
+    private static final int MAX_PHASES = 64;
+
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    public Section begin(final String name) {
+        return new Section(name);
+    }
+
+    /**
+     * Format a summary of every phase as text, one per line, in the order they were first seen.
+     */
+    public String dump() {
+        final StringBuilder builder = new StringBuilder("Latency trace (ms):\n");
+        builder.append(String.format(Locale.ENGLISH, "%6s %9s %9s %9s %9s %9s  %s\n",
+                "count", "mean", "p50", "p90", "p99", "max", "phase"));
+        synchronized (histograms) {
+            for (final Map.Entry<String, Histogram> entry : histograms.entrySet())
+                entry.getValue().dump(builder, entry.getKey());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Record a duration measured elsewhere, such as one that started on another thread.
+     */
+    public void record(final String name, final long durationNanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        Histogram histogram;
+        synchronized (histograms) {
+            histogram = histograms.get(name);
+            if (histogram == null) {
+                if (histograms.size() >= MAX_PHASES)
+                    return;
+                histogram = new Histogram();
+                histograms.put(name, histogram);
+            }
+        }
+        histogram.add(micros);
+    }
+
+    /*
+     * Durations in microseconds. Values below 8 µs each have their own bucket; above that, every
+     * power of two is split into eight buckets. Values from 2^30 µs (about 18 minutes) up share
+     * the last bucket, but the maximum is still exact.
+     */
+    private static final class Histogram {
+        private static final int MAX_EXPONENT = 29;
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long max;
+        private long sum;
+
+        private static int indexOf(final long micros) {
+            if (micros < SUB_BUCKETS)
+                return (int) Math.max(micros, 0);
+            final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent > MAX_EXPONENT)
+                return BUCKETS - 1;
+            final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long lowerBoundOf(final int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        }
+
+        synchronized void add(final long micros) {
+            ++counts[indexOf(micros)];
+            ++count;
+            sum += micros;
+            max = Math.max(max, micros);
+        }
+
+        synchronized void dump(final StringBuilder builder, final String name) {
+            builder.append(String.format(Locale.ENGLISH, "%6d %9.3f %9.3f %9.3f %9.3f %9.3f  %s\n",
+                    count, count == 0 ? 0.0 : sum / 1000.0 / count, percentile(0.5) / 1000.0,
+                    percentile(0.9) / 1000.0, percentile(0.99) / 1000.0, max / 1000.0, name));
+        }
+
+        /*
+         * The midpoint of the bucket holding the given fraction of samples, but never more than
+         * the largest sample.
+         */
+        private long percentile(final double fraction) {
+            final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    if (i == BUCKETS - 1)
+                        return max;
+                    final long low = lowerBoundOf(i);
+                    return Math.min(max, (low + lowerBoundOf(i + 1) - 1) / 2);
+                }
+            }
+            return max;
+        }
+    }
+
+    public final class Section implements AutoCloseable {
+        private final String name;
+        private final long start = SystemClock.elapsedRealtimeNanos();
+        private boolean isFailed;
+
+        private Section(final String name) {
+            this.name = name;
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void close() {
+            Trace.endSection();
+            record(isFailed ? name + " (failed)" : name, SystemClock.elapsedRealtimeNanos() - start);
+        }
+
+        /**
+         * Record this section under its name followed by "(failed)" when it ends.
+         */
+        public void fail() {
+            isFailed = true;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.wireguard.crypto.Key;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Client for the root helper, a long-lived process that performs kernel backend operations without
+ * a shell. Requests and responses use the compact binary protocol described in
+ * {@code tools/root-helper/root-helper.c}, over the helper's stdin and stdout. The helper is
+ * started by running a command and optionally writing a preamble to it, for instance running
+ * {@code su} and then {@code exec}ing the helper binary; any executable that speaks the protocol
+ * can stand in for it. Requests are handled one at a time, and the helper is restarted on the next
+ * request if it dies.
+ */
+
+public class RootHelper {
+    private static final int MAGIC = 0x57474831;
+    private static final int OP_ENUMERATE = 2;
+    private static final int OP_GET_STATE = 3;
+    private static final int OP_GET_STATS = 4;
+    private static final int OP_SET_STATE = 5;
+    private static final int OP_SET_STATES = 6;
+    private static final int OP_VERSION = 1;
+    private static final String TAG = "WireGuard/" + RootHelper.class.getSimpleName();
+
+    private final List<String> command;
+    private final Object lock = new Object();
+    @Nullable private final String preamble;
+    @Nullable private DataInputStream input;
+    @Nullable private DataOutputStream output;
+    @Nullable private Process process;
+
+    public RootHelper(final List<String> command, @Nullable final String preamble) {
+        this.command = command;
+        this.preamble = preamble;
+    }
+
+    private static String readString(final DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[input.readUnsignedShort()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStateChange(final DataOutputStream output, final boolean up,
+                                         final String config) throws IOException {
+        final byte[] bytes = config.getBytes(StandardCharsets.UTF_8);
+        output.writeByte(up ? 1 : 0);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void writeString(final DataOutputStream output, final String string)
+            throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Enumerate the names of the WireGuard interfaces that exist.
+     */
+    public Set<String> enumerate() throws IOException {
+        return transact(OP_ENUMERATE, "", null, input -> {
+            final int count = input.readUnsignedShort();
+            final Set<String> names = new HashSet<>(count);
+            for (int i = 0; i < count; ++i)
+                names.add(readString(input));
+            return names;
+        });
+    }
+
+    /**
+     * Get the traffic counters of the peers of an interface.
+     *
+     * @param name The interface to examine, or null for all interfaces.
+     */
+    public List<PeerRecord> getStatistics(@Nullable final String name) throws IOException {
+        return transact(OP_GET_STATS, name != null ? name : "", null, input -> {
+            final int count = input.readInt();
+            final List<PeerRecord> records = new ArrayList<>(count);
+            final byte[] key = new byte[Key.Format.BINARY.getLength()];
+            for (int i = 0; i < count; ++i) {
+                final String interfaceName = readString(input);
+                input.readFully(key);
+                final String endpoint = readString(input);
+                final long lastHandshake = input.readLong();
+                final long rxBytes = input.readLong();
+                final long txBytes = input.readLong();
+                records.add(new PeerRecord(interfaceName, Key.fromBytes(key).toBase64(),
+                        endpoint.isEmpty() ? null : endpoint, lastHandshake * 1000, rxBytes, txBytes));
+            }
+            return records;
+        });
+    }
+
+    public String getVersion() throws IOException {
+        return transact(OP_VERSION, "", null, RootHelper::readString);
+    }
+
+    public boolean isUp(final String name) throws IOException {
+        return transact(OP_GET_STATE, name, null, input -> input.readUnsignedByte() != 0);
+    }
+
+    private boolean isRunning() {
+        synchronized (lock) {
+            try {
+                // Throws an exception if the process hasn't finished yet.
+                if (process != null)
+                    process.exitValue();
+                return false;
+            } catch (final IllegalThreadStateException ignored) {
+                // The existing process is still running.
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Bring an interface up or down with wg-quick, using the given configuration in wg-quick
+     * format.
+     */
+    public void setState(final String name, final boolean up, final String config)
+            throws IOException {
+        transact(OP_SET_STATE, name, output -> writeStateChange(output, up, config), input -> null);
+    }
+
+    /**
+     * Bring several interfaces up or down with wg-quick in a single request. The changes are made
+     * in the order given, and a failed change doesn't stop the ones after it.
+     *
+     * @return The status of each change, in the same order: zero for success, or a value as in
+     * {@link StatusException}.
+     */
+    public int[] setStates(final List<StateChange> changes) throws IOException {
+        if (changes.size() > 0xffff)
+            throw new IllegalArgumentException("Too many state changes in one request");
+        return transact(OP_SET_STATES, "", output -> {
+            output.writeShort(changes.size());
+            for (final StateChange change : changes) {
+                writeString(output, change.name);
+                writeStateChange(output, change.up, change.config);
+            }
+        }, input -> {
+            final int count = input.readUnsignedShort();
+            if (count != changes.size())
+                throw new IOException("Unexpected response from root helper");
+            final int[] statuses = new int[count];
+            for (int i = 0; i < count; ++i)
+                statuses[i] = input.readInt();
+            return statuses;
+        });
+    }
+
+    public void start() throws IOException {
+        synchronized (lock) {
+            if (isRunning())
+                return;
+            try {
+                process = new ProcessBuilder(command).start();
+                output = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+                input = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+                if (preamble != null) {
+                    output.write(preamble.getBytes(StandardCharsets.UTF_8));
+                    output.flush();
+                }
+                if (input.readInt() != MAGIC)
+                    throw new IOException("Unexpected response from root helper");
+                // Backend detection relies on this to tell whether the device is rooted.
+                final int uid = input.readInt();
+                if (uid != 0)
+                    throw new IOException("Root helper is running as UID " + uid + " instead of root");
+                // The helper's tools write to stderr, which must not be allowed to fill up.
+                final BufferedReader stderr = new BufferedReader(new InputStreamReader(
+                        process.getErrorStream(), StandardCharsets.UTF_8));
+                final Thread thread = new Thread(() -> {
+                    try {
+                        String line;
+                        while ((line = stderr.readLine()) != null)
+                            Log.v(TAG, "stderr: " + line);
+                    } catch (final IOException ignored) {
+                        // The helper has exited.
+                    }
+                }, "RootHelper stderr");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (final IOException e) {
+                stop();
+                throw e;
+            }
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if (process != null) {
+                process.destroy();
+                process = null;
+            }
+            input = null;
+            output = null;
+        }
+    }
+
+    private <T> T transact(final int opcode, final String name,
+                           @Nullable final RequestWriter payload,
+                           final ResponseReader<T> reader) throws IOException {
+        synchronized (lock) {
+            start();
+            try {
+                output.writeByte(opcode);
+                writeString(output, name);
+                if (payload != null)
+                    payload.write(output);
+                output.flush();
+                final int status = input.readInt();
+                if (status != 0)
+                    throw new StatusException(status);
+                return reader.read(input);
+            } catch (final StatusException e) {
+                throw e;
+            } catch (final IOException e) {
+                // The stream is out of sync or the helper has died, so start over next time.
+                stop();
+                throw e;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RequestWriter {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(DataInputStream input) throws IOException;
+    }
+
+    /**
+     * Traffic counters for one peer of an interface.
+     */
+    public static final class PeerRecord {
+        @Nullable private final String endpoint;
+        private final String interfaceName;
+        private final long lastHandshakeTime;
+        private final String publicKey;
+        private final long rxBytes;
+        private final long txBytes;
+
+        PeerRecord(final String interfaceName, final String publicKey,
+                   @Nullable final String endpoint, final long lastHandshakeTime,
+                   final long rxBytes, final long txBytes) {
+            this.interfaceName = interfaceName;
+            this.publicKey = publicKey;
+            this.endpoint = endpoint;
+            this.lastHandshakeTime = lastHandshakeTime;
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+        }
+
+        @Nullable
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getInterfaceName() {
+            return interfaceName;
+        }
+
+        public long getLastHandshakeTime() {
+            return lastHandshakeTime;
+        }
+
+        public String getPublicKey() {
+            return publicKey;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
+    }
+
+    /**
+     * A request to bring one interface up or down, with its configuration in wg-quick format.
+     */
+    public static final class StateChange {
+        private final String config;
+        private final String name;
+        private final boolean up;
+
+        public StateChange(final String name, final boolean up, final String config) {
+            this.name = name;
+            this.up = up;
+            this.config = config;
+        }
+    }
+
+    /**
+     * The helper reported that a request failed, with an errno value or the exit status of the
+     * tool it ran.
+     */
+    public static class StatusException extends IOException {
+        private final int status;
+
+        public StatusException(final int status) {
+            super("Root helper request failed with status " + status);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+}
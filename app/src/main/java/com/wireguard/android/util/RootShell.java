@@ -17,14 +17,28 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionStage;
 
 /**
  * Helper class for running commands as root.
+ *
+ * Commands are written to the shell as soon as they are submitted, without waiting for earlier
+ * ones to finish. Each is bracketed by markers carrying its own request ID on both stdout and
+ * stderr, and both streams are drained continuously by reader threads, which route each line to
+ * the call it belongs to and complete that call once both of its end markers have been read.
  */
 
 public class RootShell {
@@ -37,10 +51,13 @@ public class RootShell {
     private final File localTemporaryDir;
     private final Object lock = new Object();
     private final String preamble;
+    /* Calls in flight in the current shell, by request ID. Guarded by lock. */
+    private Map<Long, Call> calls = new HashMap<>();
+    /* Prefix of all markers written by the current shell, unique to that shell. */
+    private String markerPrefix = "";
+    private long nextRequestId;
     @Nullable private Process process;
-    @Nullable private BufferedReader stderr;
     @Nullable private OutputStreamWriter stdin;
-    @Nullable private BufferedReader stdout;
 
     public RootShell(final Context context) {
         deviceNotRootedMessage = context.getString(R.string.error_root);
@@ -62,6 +79,65 @@ public class RootShell {
         return false;
     }
 
+    private static void startReader(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, "RootShell " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Read one of the shell's output streams until it closes, then fail any calls still waiting
+     * on that shell.
+     */
+    private void drain(final BufferedReader reader, final boolean isStdout, final String prefix,
+                       final Map<Long, Call> sessionCalls) {
+        final String streamName = isStdout ? "stdout: " : "stderr: ";
+        Call current = null;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(prefix)) {
+                    if (current == null)
+                        continue;
+                    if (isStdout && current.output != null)
+                        current.output.add(line);
+                    Log.v(TAG, streamName + line);
+                    continue;
+                }
+                final int space = line.indexOf(' ', prefix.length());
+                final long requestId = Long.parseLong(line.substring(prefix.length(),
+                        space < 0 ? line.length() : space));
+                final Call call;
+                synchronized (lock) {
+                    call = sessionCalls.get(requestId);
+                }
+                if (call == null)
+                    continue;
+                if (space < 0) {
+                    current = call;
+                    call.onStart();
+                } else {
+                    current = null;
+                    if (call.onExit(isStdout, Integer.parseInt(line.substring(space + 1)))) {
+                        synchronized (lock) {
+                            sessionCalls.remove(requestId);
+                        }
+                        call.complete();
+                    }
+                }
+            }
+        } catch (final IOException | NumberFormatException e) {
+            Log.w(TAG, "Unable to read " + streamName, e);
+        }
+        final List<Call> abandoned;
+        synchronized (lock) {
+            abandoned = new ArrayList<>(sessionCalls.values());
+            sessionCalls.clear();
+        }
+        for (final Call call : abandoned)
+            call.abandon();
+    }
+
     private boolean isRunning() {
         synchronized (lock) {
             try {
@@ -77,7 +153,7 @@ public class RootShell {
     }
 
     /**
-     * Run a command in a root shell.
+     * Run a command in a root shell, waiting for it to finish.
      *
      * @param output  Lines read from stdout are appended to this list. Pass null if the
      *                output from the shell is not important.
@@ -86,50 +162,48 @@ public class RootShell {
      */
     public int run(@Nullable final Collection<String> output, final String command)
             throws IOException, NoRootException {
+        try {
+            return runAsync(output, command).toCompletableFuture().get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Submit a command to the root shell without waiting for earlier commands to finish. The shell
+     * still runs commands in submission order.
+     *
+     * @param output  Lines read from stdout are appended to this list before the returned stage
+     *                completes. Pass null if the output from the shell is not important.
+     * @param command Command to run as root.
+     * @return A stage that completes with the exit value of the command.
+     */
+    public CompletionStage<Integer> runAsync(@Nullable final Collection<String> output,
+                                             final String command)
+            throws IOException, NoRootException {
         synchronized (lock) {
             /* Start inside synchronized block to prevent a concurrent call to stop(). */
             start();
-            final String marker = UUID.randomUUID().toString();
+            final long requestId = nextRequestId++;
+            final String marker = markerPrefix + requestId;
             final String script = "echo " + marker + "; echo " + marker + " >&2; (" + command +
                     "); ret=$?; echo " + marker + " $ret; echo " + marker + " $ret >&2\n";
+            final Call call = new Call(output);
+            calls.put(requestId, call);
             Log.v(TAG, "executing: " + command);
-            stdin.write(script);
-            stdin.flush();
-            String line;
-            int errnoStdout = Integer.MIN_VALUE;
-            int errnoStderr = Integer.MAX_VALUE;
-            int markersSeen = 0;
-            while ((line = stdout.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStdout = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 0) {
-                    if (output != null)
-                        output.add(line);
-                    Log.v(TAG, "stdout: " + line);
-                }
-            }
-            while ((line = stderr.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStderr = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 2) {
-                    Log.v(TAG, "stderr: " + line);
-                }
+            try {
+                stdin.write(script);
+                stdin.flush();
+            } catch (final IOException e) {
+                calls.remove(requestId);
+                throw e;
             }
-            if (markersSeen != 4)
-                throw new IOException(String.format(Locale.getDefault(),
-                        context.getResources().getString(R.string.marker_count_error), markersSeen));
-            if (errnoStdout != errnoStderr)
-                throw new IOException(context.getResources().getString(R.string.exit_status_read_error));
-            Log.v(TAG, "exit: " + errnoStdout);
-            return errnoStdout;
+            return call.future;
         }
     }
 
@@ -153,10 +227,10 @@ public class RootShell {
                     throw new NoRootException(deviceNotRootedMessage, e);
                 }
                 stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
-                stdout = new BufferedReader(new InputStreamReader(process.getInputStream(),
-                        StandardCharsets.UTF_8));
-                stderr = new BufferedReader(new InputStreamReader(process.getErrorStream(),
-                        StandardCharsets.UTF_8));
+                final BufferedReader stdout = new BufferedReader(new InputStreamReader(
+                        process.getInputStream(), StandardCharsets.UTF_8));
+                final BufferedReader stderr = new BufferedReader(new InputStreamReader(
+                        process.getErrorStream(), StandardCharsets.UTF_8));
                 stdin.write(preamble);
                 stdin.flush();
                 // Check that the shell started successfully.
@@ -175,6 +249,13 @@ public class RootShell {
                     throw new IOException(String.format(Locale.getDefault(),
                             context.getResources().getString(R.string.shell_start_error), process.exitValue()));
                 }
+                // Calls from a previous shell are failed by that shell's readers, not these.
+                final String prefix = "RootShell-" + UUID.randomUUID() + ':';
+                final Map<Long, Call> sessionCalls = new HashMap<>();
+                markerPrefix = prefix;
+                calls = sessionCalls;
+                startReader(() -> drain(stdout, true, prefix, sessionCalls), "stdout");
+                startReader(() -> drain(stderr, false, prefix, sessionCalls), "stderr");
             } catch (final IOException | NoRootException e) {
                 stop();
                 throw e;
@@ -191,6 +272,63 @@ public class RootShell {
         }
     }
 
+    private final class Call {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        @Nullable final Collection<String> output;
+        private int exitStderr = Integer.MAX_VALUE;
+        private int exitStdout = Integer.MIN_VALUE;
+        private int markersSeen;
+
+        Call(@Nullable final Collection<String> output) {
+            this.output = output;
+        }
+
+        /*
+         * Runs on a reader thread, so nothing here may keep the future from completing.
+         */
+        synchronized void abandon() {
+            String message;
+            try {
+                message = String.format(Locale.getDefault(),
+                        context.getResources().getString(R.string.marker_count_error), markersSeen);
+            } catch (final RuntimeException e) {
+                message = "Expected 4 markers, received " + markersSeen;
+            }
+            future.completeExceptionally(new IOException(message));
+        }
+
+        void complete() {
+            final int exitStdout;
+            final int exitStderr;
+            synchronized (this) {
+                exitStdout = this.exitStdout;
+                exitStderr = this.exitStderr;
+            }
+            if (exitStdout != exitStderr) {
+                future.completeExceptionally(new IOException(context.getResources().getString(R.string.exit_status_read_error)));
+                return;
+            }
+            Log.v(TAG, "exit: " + exitStdout);
+            future.complete(exitStdout);
+        }
+
+        /*
+         * Record an end marker, returning true once both streams have reached theirs.
+         */
+        synchronized boolean onExit(final boolean isStdout, final int exit) {
+            ++markersSeen;
+            if (isStdout)
+                exitStdout = exit;
+            else
+                exitStderr = exit;
+            return exitStdout != Integer.MIN_VALUE && exitStderr != Integer.MAX_VALUE;
+        }
+
+        synchronized void onStart() {
+            ++markersSeen;
+        }
+    }
+
     public static class NoRootException extends Exception {
         public NoRootException(final String message, final Throwable cause) {
             super(message, cause);
@@ -10,18 +10,76 @@ import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+/**
+ * Loads native libraries, extracting them from the APK when the system didn't install them. An
+ * extracted library is kept under a name derived from its ABI and the CRC-32 recorded for it in
+ * the APK, so later process starts reuse it after checking it against that CRC, and an update
+ * that changes the library extracts a fresh copy and removes the old one.
+ */
+
 public final class SharedLibraryLoader {
     private static final String TAG = "WireGuard/" + SharedLibraryLoader.class.getSimpleName();
 
     private SharedLibraryLoader() {
     }
 
+    private static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[1024 * 64];
+        try (final InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1)
+                crc.update(buffer, 0, len);
+        }
+        return crc.getValue();
+    }
+
+    private static File extract(final ZipFile zipFile, final ZipEntry zipEntry, final File directory,
+                                final String prefix, final String cachedName) throws IOException {
+        final File cached = new File(directory, cachedName);
+        if (cached.length() == zipEntry.getSize() && checksum(cached) == zipEntry.getCrc()) {
+            Log.d(TAG, "Reusing extracted library " + cached.getAbsolutePath());
+            return cached;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+        // Write to a temporary file first, so a partial copy is never picked up later.
+        final File temporary = File.createTempFile(prefix, ".tmp", directory);
+        try {
+            Log.d(TAG, "Extracting apk:/" + zipEntry.getName() + " to " + cached.getAbsolutePath());
+            try (final InputStream in = zipFile.getInputStream(zipEntry);
+                 final ReadableByteChannel source = Channels.newChannel(in);
+                 final FileChannel destination = new FileOutputStream(temporary).getChannel()) {
+                long position = 0;
+                long count;
+                while ((count = destination.transferFrom(source, position, zipEntry.getSize() - position)) > 0)
+                    position += count;
+                if (position != zipEntry.getSize())
+                    throw new IOException("Truncated library apk:/" + zipEntry.getName());
+            }
+            if (checksum(temporary) != zipEntry.getCrc())
+                throw new IOException("Corrupt library apk:/" + zipEntry.getName());
+            if (!temporary.renameTo(cached))
+                throw new IOException("Unable to rename " + temporary + " to " + cached);
+            return cached;
+        } finally {
+            // noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+        }
+    }
+
     public static void loadSharedLibrary(final Context context, final String libName) {
         Throwable noAbiException;
         try {
@@ -39,37 +97,53 @@ public final class SharedLibraryLoader {
             throw new RuntimeException(e);
         }
 
+        final File directory = new File(context.getCacheDir(), "lib");
         final String mappedLibName = System.mapLibraryName(libName);
-        final byte[] buffer = new byte[1024 * 32];
-        for (final String abi : Build.SUPPORTED_ABIS) {
-            final String libZipPath = "lib" + File.separatorChar + abi + File.separatorChar + mappedLibName;
-            final ZipEntry zipEntry = zipFile.getEntry(libZipPath);
-            if (zipEntry == null)
-                continue;
-            File f = null;
-            try {
-                f = File.createTempFile("lib", ".so", context.getCacheDir());
-                Log.d(TAG, "Extracting apk:/" + libZipPath + " to " + f.getAbsolutePath() + " and loading");
-                try (final FileOutputStream out = new FileOutputStream(f);
-                     final InputStream in = zipFile.getInputStream(zipEntry)) {
-                    int len;
-                    while ((len = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, len);
-                    }
+        try {
+            for (final String abi : Build.SUPPORTED_ABIS) {
+                final String libZipPath = "lib" + File.separatorChar + abi + File.separatorChar + mappedLibName;
+                final ZipEntry zipEntry = zipFile.getEntry(libZipPath);
+                if (zipEntry == null)
+                    continue;
+                final String prefix = libName + '-';
+                final String cachedName = String.format(Locale.ENGLISH, "%s%s-%08x.so", prefix, abi, zipEntry.getCrc());
+                try {
+                    final File f = extract(zipFile, zipEntry, directory, prefix, cachedName);
+                    System.load(f.getAbsolutePath());
+                    removeStale(directory, prefix, cachedName);
+                    return;
+                } catch (final Exception e) {
+                    Log.d(TAG, "Failed to load library apk:/" + libZipPath, e);
+                    noAbiException = e;
                 }
-                System.load(f.getAbsolutePath());
-                return;
-            } catch (final Exception e) {
-                Log.d(TAG, "Failed to load library apk:/" + libZipPath, e);
-                noAbiException = e;
-            } finally {
-                if (f != null)
-                    // noinspection ResultOfMethodCallIgnored
-                    f.delete();
+            }
+        } finally {
+            try {
+                zipFile.close();
+            } catch (final IOException ignored) {
+                // Nothing more can be done.
             }
         }
         if (noAbiException instanceof RuntimeException)
             throw (RuntimeException) noAbiException;
         throw new RuntimeException(noAbiException);
     }
+
+    /**
+     * Delete copies of a library extracted from earlier versions of the APK, and any partial
+     * copies left by an interrupted extraction.
+     */
+    private static void removeStale(final File directory, final String prefix, final String current) {
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(prefix) && !name.equals(current)) {
+                Log.d(TAG, "Removing stale library " + file.getAbsolutePath());
+                // noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records the phases of application startup. Each phase is timed relative to the creation of the
+ * trace and is also emitted as an {@code android.os.Trace} section, so it shows up in systrace.
+ * Sections must be ended on the thread that began them.
+ */
+
+public final class StartupTrace {
+    private final List<String> entries = new ArrayList<>();
+    private final long origin = SystemClock.elapsedRealtime();
+
+    public Section begin(final String name) {
+        return new Section(name);
+    }
+
+    /**
+     * Format all recorded phases as text, one per line, in the order they ended.
+     */
+    public String dump() {
+        final StringBuilder builder = new StringBuilder("Startup trace:\n");
+        synchronized (entries) {
+            for (final String entry : entries)
+                builder.append(entry).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Record an instantaneous event, such as the point at which startup is considered complete.
+     */
+    public void mark(final String name) {
+        record(String.format(Locale.ENGLISH, "%6d ms        %s [%s]",
+                SystemClock.elapsedRealtime() - origin, name, Thread.currentThread().getName()));
+    }
+
+    private void record(final String entry) {
+        synchronized (entries) {
+            entries.add(entry);
+        }
+    }
+
+    public final class Section implements AutoCloseable {
+        private final String name;
+        private final long start = SystemClock.elapsedRealtime();
+
+        private Section(final String name) {
+            this.name = name;
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void close() {
+            Trace.endSection();
+            final long end = SystemClock.elapsedRealtime();
+            record(String.format(Locale.ENGLISH, "%6d ms %+5d ms %s [%s]",
+                    start - origin, end - start, name, Thread.currentThread().getName()));
+        }
+    }
+}
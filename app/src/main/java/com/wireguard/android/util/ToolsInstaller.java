@@ -6,6 +6,7 @@
 package com.wireguard.android.util;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.support.annotation.Nullable;
 import android.system.OsConstants;
 import android.util.Log;
@@ -15,14 +16,21 @@ import com.wireguard.android.BuildConfig;
 import com.wireguard.android.R;
 import com.wireguard.android.util.RootShell.NoRootException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 
 /**
- * Helper to install WireGuard tools to the system partition.
+ * Helper to install WireGuard tools to the system partition. Checks that only need to read files
+ * run in-process; the result of the one probe that needs root is kept in shared preferences, and
+ * is only repeated once the app, its native libraries or the boot have changed.
  */
 
 public final class ToolsInstaller {
@@ -40,6 +48,8 @@ public final class ToolsInstaller {
             new File("/system/bin"),
     };
     @Nullable private static final File INSTALL_DIR = getInstallDir();
+    private static final String KEY_MAGISK_PROBE = "tools_magisk_probe";
+    private static final String KEY_MAGISK_PROBE_STAMP = "tools_magisk_probe_stamp";
     private static final String TAG = "WireGuard/" + ToolsInstaller.class.getSimpleName();
 
     private final Context context;
@@ -55,6 +65,33 @@ public final class ToolsInstaller {
         this.context = context;
     }
 
+    private static boolean contentEquals(final File a, final File b) {
+        if (a.length() != b.length())
+            return false;
+        try (final InputStream inputA = new BufferedInputStream(new FileInputStream(a));
+             final InputStream inputB = new BufferedInputStream(new FileInputStream(b))) {
+            int byteA;
+            do {
+                byteA = inputA.read();
+                if (byteA != inputB.read())
+                    return false;
+            } while (byteA != -1);
+            return true;
+        } catch (final IOException ignored) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static String getBootId() {
+        try (final BufferedReader reader = new BufferedReader(
+                new FileReader("/proc/sys/kernel/random/boot_id"))) {
+            return reader.readLine();
+        } catch (final IOException ignored) {
+            return null;
+        }
+    }
+
     @Nullable
     private static File getInstallDir() {
         final String path = System.getenv("PATH");
@@ -71,28 +108,38 @@ public final class ToolsInstaller {
     public int areInstalled() throws NoRootException {
         if (INSTALL_DIR == null)
             return ERROR;
-        final StringBuilder script = new StringBuilder();
+        // Both copies are world-readable, so comparing them doesn't need root.
+        boolean areEqual = true;
         for (final String[] names : EXECUTABLES) {
-            script.append(String.format("cmp -s '%s' '%s' && ",
-                    new File(nativeLibraryDir, names[0]),
-                    new File(INSTALL_DIR, names[1])));
+            if (!contentEquals(new File(nativeLibraryDir, names[0]), new File(INSTALL_DIR, names[1]))) {
+                areEqual = false;
+                break;
+            }
         }
-        script.append("exit ").append(OsConstants.EALREADY).append(';');
+        if (areEqual)
+            return willInstallAsMagiskModule() ? YES | MAGISK : YES | SYSTEM;
+        else
+            return willInstallAsMagiskModule() ? NO | MAGISK : NO | SYSTEM;
+    }
+
+    private boolean areSymlinked() {
         try {
-            final int ret = Application.getRootShell().run(null, script.toString());
-            if (ret == OsConstants.EALREADY)
-                return willInstallAsMagiskModule() ? YES | MAGISK : YES | SYSTEM;
-            else
-                return willInstallAsMagiskModule() ? NO | MAGISK : NO | SYSTEM;
+            for (final String[] names : EXECUTABLES) {
+                final File target = new File(nativeLibraryDir, names[0]).getCanonicalFile();
+                if (!new File(localBinaryDir, names[1]).getCanonicalFile().equals(target))
+                    return false;
+            }
+            return true;
         } catch (final IOException ignored) {
-            return ERROR;
+            return false;
         }
     }
 
     public void ensureToolsAvailable() throws FileNotFoundException, NoRootException {
         synchronized (lock) {
             if (areToolsAvailable == null) {
-                final int ret = symlink();
+                // The links are in our own cache, so they can be checked without a root shell.
+                final int ret = areSymlinked() ? OsConstants.EALREADY : symlink();
                 if (ret == OsConstants.EALREADY) {
                     Log.d(TAG, "Tools were already symlinked into our private binary dir");
                     areToolsAvailable = true;
@@ -110,6 +157,16 @@ public final class ToolsInstaller {
         }
     }
 
+    /**
+     * Identify everything the Magisk probe depends on. Magisk can only come or go across a reboot.
+     */
+    private String getProbeStamp() {
+        final StringBuilder stamp = new StringBuilder().append(BuildConfig.VERSION_CODE);
+        for (final String[] names : EXECUTABLES)
+            stamp.append('/').append(new File(nativeLibraryDir, names[0]).lastModified());
+        return stamp.append('/').append(getBootId()).toString();
+    }
+
     public int install() throws NoRootException {
         return willInstallAsMagiskModule() ? installMagisk() : installSystem();
     }
@@ -178,9 +235,20 @@ public final class ToolsInstaller {
     private boolean willInstallAsMagiskModule() {
         synchronized (lock) {
             if (installAsMagiskModule == null) {
+                final SharedPreferences preferences = Application.getSharedPreferences();
+                final String stamp = getProbeStamp();
+                if (stamp.equals(preferences.getString(KEY_MAGISK_PROBE_STAMP, null))) {
+                    installAsMagiskModule = preferences.getBoolean(KEY_MAGISK_PROBE, false);
+                    return installAsMagiskModule;
+                }
                 try {
                     installAsMagiskModule = Application.getRootShell().run(null, "[ -d /sbin/.core/mirror -a -d /sbin/.core/img -a ! -f /cache/.disable_magisk ]") == OsConstants.EXIT_SUCCESS;
+                    preferences.edit()
+                            .putBoolean(KEY_MAGISK_PROBE, installAsMagiskModule)
+                            .putString(KEY_MAGISK_PROBE_STAMP, stamp)
+                            .apply();
                 } catch (final Exception ignored) {
+                    // Don't remember a failed probe.
                     installAsMagiskModule = false;
                 }
             }
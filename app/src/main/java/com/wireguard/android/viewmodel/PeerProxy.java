@@ -23,27 +23,10 @@ import com.wireguard.crypto.Key;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
-
-import java9.util.Lists;
-import java9.util.Sets;
-import java9.util.stream.Collectors;
-import java9.util.stream.Stream;
 
 public class PeerProxy extends BaseObservable implements Parcelable {
     public static final Parcelable.Creator<PeerProxy> CREATOR = new PeerProxyCreator();
-    private static final Set<String> IPV4_PUBLIC_NETWORKS = new LinkedHashSet<>(Lists.of(
-            "0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3",
-            "64.0.0.0/2", "128.0.0.0/3", "160.0.0.0/5", "168.0.0.0/6", "172.0.0.0/12",
-            "172.32.0.0/11", "172.64.0.0/10", "172.128.0.0/9", "173.0.0.0/8", "174.0.0.0/7",
-            "176.0.0.0/4", "192.0.0.0/9", "192.128.0.0/11", "192.160.0.0/13", "192.169.0.0/16",
-            "192.170.0.0/15", "192.172.0.0/14", "192.176.0.0/12", "192.192.0.0/10",
-            "193.0.0.0/8", "194.0.0.0/7", "196.0.0.0/6", "200.0.0.0/5", "208.0.0.0/4"
-    ));
-    private static final Set<String> IPV4_WILDCARD = Sets.of("0.0.0.0/0");
-
     private final List<String> dnsRoutes = new ArrayList<>();
     private String allowedIps;
     private AllowedIpsState allowedIpsState = AllowedIpsState.INVALID;
@@ -98,14 +81,14 @@ public class PeerProxy extends BaseObservable implements Parcelable {
         final AllowedIpsState newState;
         if (totalPeers == 1) {
             // String comparison works because we only care if allowedIps is a superset of one of
-            // the above sets of (valid) *networks*. We are not checking for a superset based on
-            // the individual addresses in each set.
-            final Collection<String> networkStrings = getAllowedIpsSet();
+            // the sets of (valid) *networks* in PrivateIpsExclusion. We are not checking for a
+            // superset based on the individual addresses in each set.
+            final Collection<String> networkStrings = PrivateIpsExclusion.getAllowedIpsSet(allowedIps);
             // If allowedIps contains both the wildcard and the public networks, then private
             // networks aren't excluded!
-            if (networkStrings.containsAll(IPV4_WILDCARD))
+            if (networkStrings.containsAll(PrivateIpsExclusion.IPV4_WILDCARD))
                 newState = AllowedIpsState.CONTAINS_IPV4_WILDCARD;
-            else if (networkStrings.containsAll(IPV4_PUBLIC_NETWORKS))
+            else if (networkStrings.containsAll(PrivateIpsExclusion.IPV4_PUBLIC_NETWORKS))
                 newState = AllowedIpsState.CONTAINS_IPV4_PUBLIC_NETWORKS;
             else
                 newState = AllowedIpsState.OTHER;
@@ -129,10 +112,6 @@ public class PeerProxy extends BaseObservable implements Parcelable {
         return allowedIps;
     }
 
-    private Set<String> getAllowedIpsSet() {
-        return new LinkedHashSet<>(Lists.of(Attribute.split(allowedIps)));
-    }
-
     @Bindable
     public String getEndpoint() {
         return endpoint;
@@ -193,31 +172,7 @@ public class PeerProxy extends BaseObservable implements Parcelable {
     public void setExcludingPrivateIps(final boolean excludingPrivateIps) {
         if (!isAbleToExcludePrivateIps() || isExcludingPrivateIps() == excludingPrivateIps)
             return;
-        final Set<String> oldNetworks = excludingPrivateIps ? IPV4_WILDCARD : IPV4_PUBLIC_NETWORKS;
-        final Set<String> newNetworks = excludingPrivateIps ? IPV4_PUBLIC_NETWORKS : IPV4_WILDCARD;
-        final Collection<String> input = getAllowedIpsSet();
-        final int outputSize = input.size() - oldNetworks.size() + newNetworks.size();
-        final Collection<String> output = new LinkedHashSet<>(outputSize);
-        boolean replaced = false;
-        // Replace the first instance of the wildcard with the public network list, or vice versa.
-        for (final String network : input) {
-            if (oldNetworks.contains(network)) {
-                if (!replaced) {
-                    for (final String replacement : newNetworks)
-                        if (!output.contains(replacement))
-                            output.add(replacement);
-                    replaced = true;
-                }
-            } else if (!output.contains(network)) {
-                output.add(network);
-            }
-        }
-        // DNS servers only need to handled specially when we're excluding private IPs.
-        if (excludingPrivateIps)
-            output.addAll(dnsRoutes);
-        else
-            output.removeAll(dnsRoutes);
-        allowedIps = Attribute.join(output);
+        allowedIps = PrivateIpsExclusion.setExcludingPrivateIps(allowedIps, excludingPrivateIps, dnsRoutes);
         allowedIpsState = excludingPrivateIps ?
                 AllowedIpsState.CONTAINS_IPV4_PUBLIC_NETWORKS : AllowedIpsState.CONTAINS_IPV4_WILDCARD;
         notifyPropertyChanged(BR.allowedIps);
@@ -225,20 +180,10 @@ public class PeerProxy extends BaseObservable implements Parcelable {
     }
 
     private void setInterfaceDns(final CharSequence dnsServers) {
-        final List<String> newDnsRoutes = Stream.of(Attribute.split(dnsServers))
-                .map(server -> server + "/32")
-                .collect(Collectors.toUnmodifiableList());
+        final List<String> newDnsRoutes = PrivateIpsExclusion.getDnsRoutes(dnsServers);
         if (allowedIpsState == AllowedIpsState.CONTAINS_IPV4_PUBLIC_NETWORKS) {
-            final Collection<String> input = getAllowedIpsSet();
-            final Collection<String> output = new LinkedHashSet<>(input.size() + 1);
-            // Yes, this is quadratic in the number of DNS servers, but most users have 1 or 2.
-            for (final String network : input)
-                if (!dnsRoutes.contains(network) || newDnsRoutes.contains(network))
-                    output.add(network);
-            // Since output is a Set, this does the Right Thing™ (it does not duplicate networks).
-            output.addAll(newDnsRoutes);
             // None of the public networks are /32s, so this cannot change the AllowedIPs state.
-            allowedIps = Attribute.join(output);
+            allowedIps = PrivateIpsExclusion.updateDnsRoutes(allowedIps, dnsRoutes, newDnsRoutes);
             notifyPropertyChanged(BR.allowedIps);
         }
         dnsRoutes.clear();
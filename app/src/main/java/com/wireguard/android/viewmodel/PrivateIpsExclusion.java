@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.viewmodel;
+
+import com.wireguard.config.Attribute;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import java9.util.Lists;
+import java9.util.Sets;
+import java9.util.stream.Collectors;
+import java9.util.stream.Stream;
+
+/**
+ * The AllowedIPs rewriting behind a peer's "exclude private IPs" switch. It works on the text of
+ * the list and has no Android dependencies, so that {@link PeerProxy} can stay a thin observable
+ * wrapper around it and the computation can be measured on its own.
+ */
+
+final class PrivateIpsExclusion {
+    static final Set<String> IPV4_PUBLIC_NETWORKS = new LinkedHashSet<>(Lists.of(
+            "0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3",
+            "64.0.0.0/2", "128.0.0.0/3", "160.0.0.0/5", "168.0.0.0/6", "172.0.0.0/12",
+            "172.32.0.0/11", "172.64.0.0/10", "172.128.0.0/9", "173.0.0.0/8", "174.0.0.0/7",
+            "176.0.0.0/4", "192.0.0.0/9", "192.128.0.0/11", "192.160.0.0/13", "192.169.0.0/16",
+            "192.170.0.0/15", "192.172.0.0/14", "192.176.0.0/12", "192.192.0.0/10",
+            "193.0.0.0/8", "194.0.0.0/7", "196.0.0.0/6", "200.0.0.0/5", "208.0.0.0/4"
+    ));
+    static final Set<String> IPV4_WILDCARD = Sets.of("0.0.0.0/0");
+
+    private PrivateIpsExclusion() {
+        // Prevent instantiation.
+    }
+
+    static Set<String> getAllowedIpsSet(final CharSequence allowedIps) {
+        return new LinkedHashSet<>(Lists.of(Attribute.split(allowedIps)));
+    }
+
+    static List<String> getDnsRoutes(final CharSequence dnsServers) {
+        return Stream.of(Attribute.split(dnsServers))
+                .map(server -> server + "/32")
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * Replace the first instance of the wildcard with the public network list, or vice versa, and
+     * add or remove the routes to the interface's DNS servers to match.
+     */
+    static String setExcludingPrivateIps(final CharSequence allowedIps, final boolean excludingPrivateIps,
+                                         final Collection<String> dnsRoutes) {
+        final Set<String> oldNetworks = excludingPrivateIps ? IPV4_WILDCARD : IPV4_PUBLIC_NETWORKS;
+        final Set<String> newNetworks = excludingPrivateIps ? IPV4_PUBLIC_NETWORKS : IPV4_WILDCARD;
+        final Collection<String> input = getAllowedIpsSet(allowedIps);
+        final int outputSize = input.size() - oldNetworks.size() + newNetworks.size();
+        final Collection<String> output = new LinkedHashSet<>(outputSize);
+        boolean replaced = false;
+        for (final String network : input) {
+            if (oldNetworks.contains(network)) {
+                if (!replaced) {
+                    for (final String replacement : newNetworks)
+                        if (!output.contains(replacement))
+                            output.add(replacement);
+                    replaced = true;
+                }
+            } else if (!output.contains(network)) {
+                output.add(network);
+            }
+        }
+        // DNS servers only need to handled specially when we're excluding private IPs.
+        if (excludingPrivateIps)
+            output.addAll(dnsRoutes);
+        else
+            output.removeAll(dnsRoutes);
+        return Attribute.join(output);
+    }
+
+    /**
+     * Swap the routes to the old DNS servers for routes to the new ones, in a list that excludes
+     * private IPs.
+     */
+    static String updateDnsRoutes(final CharSequence allowedIps, final Collection<String> oldDnsRoutes,
+                                  final Collection<String> newDnsRoutes) {
+        final Collection<String> input = getAllowedIpsSet(allowedIps);
+        final Collection<String> output = new LinkedHashSet<>(input.size() + 1);
+        // Yes, this is quadratic in the number of DNS servers, but most users have 1 or 2.
+        for (final String network : input)
+            if (!oldDnsRoutes.contains(network) || newDnsRoutes.contains(network))
+                output.add(network);
+        // Since output is a Set, this does the Right Thing™ (it does not duplicate networks).
+        output.addAll(newDnsRoutes);
+        return Attribute.join(output);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Stand-in for the root helper, which speaks its protocol on stdin and stdout without root, a
+ * kernel module, or any tools. Interfaces exist only in memory: bringing one up adds it, and
+ * bringing one down removes it. A config containing {@link #FAIL} fails with
+ * {@link #FAIL_STATUS}, as wg-quick would with a bad config, and requests naming the interface
+ * {@link #TRUNCATE} get a response cut short by the helper exiting.
+ *
+ * Run with the argument {@code bad-magic} to answer the handshake with the wrong magic number, or
+ * {@code not-root} to report an unprivileged UID.
+ */
+
+public final class FakeRootHelper {
+    static final String ENDPOINT = "192.0.2.1:51820";
+    static final String FAIL = "FAIL";
+    static final int FAIL_STATUS = 4;
+    static final long LAST_HANDSHAKE = 1500000000;
+    static final long RX_BYTES = 1024;
+    static final String TRUNCATE = "truncate";
+    static final long TX_BYTES = 2048;
+    static final String VERSION = "0.0.fake";
+    private static final int EINVAL = 22;
+    private static final int ENOSYS = 38;
+    private static final int MAGIC = 0x57474831;
+    private static final int OP_ENUMERATE = 2;
+    private static final int OP_GET_STATE = 3;
+    private static final int OP_GET_STATS = 4;
+    private static final int OP_SET_STATE = 5;
+    private static final int OP_SET_STATES = 6;
+    private static final int OP_VERSION = 1;
+
+    private final Set<String> interfaces = new TreeSet<>();
+    private final DataInputStream input;
+    private final DataOutputStream output;
+
+    private FakeRootHelper(final DataInputStream input, final DataOutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    /**
+     * The public key reported for the one peer of every interface.
+     */
+    static byte[] getPublicKey() {
+        final byte[] key = new byte[32];
+        for (int i = 0; i < key.length; ++i)
+            key[i] = (byte) (i + 1);
+        return key;
+    }
+
+    private static boolean isValidName(final String name) {
+        return !name.isEmpty() && name.length() <= 15 && name.matches("[a-zA-Z0-9_=+.-]+");
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(System.out));
+        output.writeInt(args.length > 0 && "bad-magic".equals(args[0]) ? ~MAGIC : MAGIC);
+        output.writeInt(args.length > 0 && "not-root".equals(args[0]) ? 10000 : 0);
+        output.flush();
+        new FakeRootHelper(new DataInputStream(new BufferedInputStream(System.in)), output).serve();
+    }
+
+    private static String readString(final DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[input.readUnsignedShort()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(final DataOutputStream output, final String string)
+            throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    private int getStatistics(final String name, final DataOutputStream response) throws IOException {
+        if (TRUNCATE.equals(name)) {
+            // Claim a record, and then die partway through it.
+            output.writeInt(0);
+            output.writeInt(1);
+            writeString(output, name);
+            output.flush();
+            System.exit(0);
+        }
+        final Set<String> selected = new TreeSet<>();
+        for (final String iface : interfaces) {
+            if (name.isEmpty() || name.equals(iface))
+                selected.add(iface);
+        }
+        response.writeInt(selected.size());
+        for (final String iface : selected) {
+            writeString(response, iface);
+            response.write(getPublicKey());
+            writeString(response, ENDPOINT);
+            response.writeLong(LAST_HANDSHAKE);
+            response.writeLong(RX_BYTES);
+            response.writeLong(TX_BYTES);
+        }
+        return 0;
+    }
+
+    private int setState(final String name, final boolean up, final String config) {
+        if (!isValidName(name))
+            return EINVAL;
+        if (config.contains(FAIL))
+            return FAIL_STATUS;
+        if (up)
+            interfaces.add(name);
+        else
+            interfaces.remove(name);
+        return 0;
+    }
+
+    private void serve() throws IOException {
+        while (true) {
+            final int opcode;
+            try {
+                opcode = input.readUnsignedByte();
+            } catch (final EOFException ignored) {
+                return;
+            }
+            final String name = readString(input);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream response = new DataOutputStream(bytes);
+            final int status;
+            switch (opcode) {
+                case OP_VERSION:
+                    writeString(response, VERSION);
+                    status = 0;
+                    break;
+                case OP_ENUMERATE:
+                    response.writeShort(interfaces.size());
+                    for (final String iface : interfaces)
+                        writeString(response, iface);
+                    status = 0;
+                    break;
+                case OP_GET_STATE:
+                    if (isValidName(name)) {
+                        response.writeByte(interfaces.contains(name) ? 1 : 0);
+                        status = 0;
+                    } else {
+                        status = EINVAL;
+                    }
+                    break;
+                case OP_GET_STATS:
+                    status = getStatistics(name, response);
+                    break;
+                case OP_SET_STATE: {
+                    final boolean up = input.readUnsignedByte() != 0;
+                    final byte[] config = new byte[input.readInt()];
+                    input.readFully(config);
+                    status = setState(name, up, new String(config, StandardCharsets.UTF_8));
+                    break;
+                }
+                case OP_SET_STATES: {
+                    final int count = input.readUnsignedShort();
+                    final String[] names = new String[count];
+                    final boolean[] ups = new boolean[count];
+                    final String[] configs = new String[count];
+                    // Read the whole request before acting on any of it, as the real helper does.
+                    for (int i = 0; i < count; ++i) {
+                        names[i] = readString(input);
+                        ups[i] = input.readUnsignedByte() != 0;
+                        final byte[] config = new byte[input.readInt()];
+                        input.readFully(config);
+                        configs[i] = new String(config, StandardCharsets.UTF_8);
+                    }
+                    response.writeShort(count);
+                    for (int i = 0; i < count; ++i)
+                        response.writeInt(setState(names[i], ups[i], configs[i]));
+                    status = 0;
+                    break;
+                }
+                default:
+                    status = ENOSYS;
+                    break;
+            }
+            output.writeInt(status);
+            if (status == 0)
+                bytes.writeTo(output);
+            output.flush();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.util;
+
+import com.wireguard.android.util.RootHelper.PeerRecord;
+import com.wireguard.android.util.RootHelper.StateChange;
+import com.wireguard.android.util.RootHelper.StatusException;
+import com.wireguard.crypto.Key;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the root helper protocol against {@link FakeRootHelper}, run as a separate process
+ * exactly as the real helper would be, so no root is needed.
+ */
+
+public class RootHelperTest {
+    private static final String CONFIG = "[Interface]\nPrivateKey = unused\n";
+
+    private RootHelper helper = startFake();
+
+    private static RootHelper startFake(final String... args) {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        final List<String> command = new ArrayList<>(Arrays.asList(java, "-cp",
+                System.getProperty("java.class.path"), FakeRootHelper.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new RootHelper(command, null);
+    }
+
+    @After
+    public void stopHelper() {
+        helper.stop();
+    }
+
+    @Test
+    public void testBadMagicFailsStart() {
+        helper = startFake("bad-magic");
+        try {
+            helper.getVersion();
+            fail("Expected the handshake to be rejected");
+        } catch (final IOException e) {
+            assertFalse(e instanceof StatusException);
+        }
+    }
+
+    @Test
+    public void testNonRootUidFailsStart() {
+        helper = startFake("not-root");
+        try {
+            helper.start();
+            fail("Expected a helper without root to be rejected");
+        } catch (final IOException e) {
+            assertFalse(e instanceof StatusException);
+        }
+    }
+
+    @Test
+    public void testEnumerateAndGetState() throws IOException {
+        assertEquals(Collections.emptySet(), helper.enumerate());
+        helper.setState("wg0", true, CONFIG);
+        helper.setState("wg1", true, CONFIG);
+        assertEquals(new HashSet<>(Arrays.asList("wg0", "wg1")), helper.enumerate());
+        assertTrue(helper.isUp("wg0"));
+        helper.setState("wg0", false, CONFIG);
+        assertFalse(helper.isUp("wg0"));
+        assertEquals(Collections.singleton("wg1"), helper.enumerate());
+    }
+
+    @Test
+    public void testErrorStatusKeepsHelper() throws IOException {
+        helper.setState("wg0", true, CONFIG);
+        try {
+            helper.setState("wg1", true, FakeRootHelper.FAIL);
+            fail("Expected the state change to fail");
+        } catch (final StatusException e) {
+            assertEquals(FakeRootHelper.FAIL_STATUS, e.getStatus());
+        }
+        try {
+            helper.isUp("bad/name");
+            fail("Expected the name to be rejected");
+        } catch (final StatusException e) {
+            assertEquals(22, e.getStatus());
+        }
+        // The stream stayed in sync, and the helper that knows about wg0 is still running.
+        assertEquals(Collections.singleton("wg0"), helper.enumerate());
+    }
+
+    @Test
+    public void testGetStatistics() throws IOException {
+        helper.setState("wg0", true, CONFIG);
+        helper.setState("wg1", true, CONFIG);
+        final List<PeerRecord> all = helper.getStatistics(null);
+        assertEquals(2, all.size());
+        final List<PeerRecord> one = helper.getStatistics("wg1");
+        assertEquals(1, one.size());
+        final PeerRecord record = one.get(0);
+        assertEquals("wg1", record.getInterfaceName());
+        assertEquals(Key.fromBytes(FakeRootHelper.getPublicKey()).toBase64(), record.getPublicKey());
+        assertEquals(FakeRootHelper.ENDPOINT, record.getEndpoint());
+        assertEquals(FakeRootHelper.LAST_HANDSHAKE * 1000, record.getLastHandshakeTime());
+        assertEquals(FakeRootHelper.RX_BYTES, record.getRxBytes());
+        assertEquals(FakeRootHelper.TX_BYTES, record.getTxBytes());
+    }
+
+    @Test
+    public void testSetStates() throws IOException {
+        helper.setState("wg0", true, CONFIG);
+        final int[] statuses = helper.setStates(Arrays.asList(
+                new StateChange("wg0", false, CONFIG),
+                new StateChange("wg1", true, FakeRootHelper.FAIL),
+                new StateChange("bad/name", true, CONFIG),
+                new StateChange("wg2", true, CONFIG)));
+        assertArrayEquals(new int[]{0, FakeRootHelper.FAIL_STATUS, 22, 0}, statuses);
+        assertEquals(Collections.singleton("wg2"), helper.enumerate());
+        assertArrayEquals(new int[0], helper.setStates(Collections.emptyList()));
+    }
+
+    @Test
+    public void testTruncatedResponseRestartsHelper() throws IOException {
+        helper.setState("wg0", true, CONFIG);
+        try {
+            helper.getStatistics(FakeRootHelper.TRUNCATE);
+            fail("Expected the truncated response to fail");
+        } catch (final IOException e) {
+            assertFalse(e instanceof StatusException);
+        }
+        // A new helper was started, which knows nothing of the old one's interfaces.
+        assertEquals(FakeRootHelper.VERSION, helper.getVersion());
+        assertEquals(Collections.emptySet(), helper.enumerate());
+    }
+
+    @Test
+    public void testVersion() throws IOException {
+        assertEquals(FakeRootHelper.VERSION, helper.getVersion());
+    }
+}
@@ -10,40 +10,67 @@ package main
 import "C"
 
 import (
-	"bufio"
 	"git.zx2c4.com/wireguard-go/tun"
 	"golang.org/x/sys/unix"
-	"io/ioutil"
 	"log"
 	"math"
 	"net"
 	"os"
 	"os/signal"
 	"runtime"
-	"strings"
+	"sync"
 	"unsafe"
 )
 
-type AndroidLogger struct {
-	level         C.int
-	interfaceName string
+type TunnelHandle struct {
+	device *Device
+	uapi   net.Listener
 }
 
-func (l AndroidLogger) Write(p []byte) (int, error) {
-	C.__android_log_write(l.level, C.CString("WireGuard/GoBackend/"+l.interfaceName), C.CString(string(p)))
-	return len(p), nil
+/* Handles are allocated from a counter that only searches past entries that are still in use, and
+ * all access goes through the mutex since Java may call in from several threads.
+ */
+var tunnelHandles struct {
+	sync.Mutex
+	handles map[int32]TunnelHandle
+	next    int32
 }
 
-type TunnelHandle struct {
-	device *Device
-	uapi   net.Listener
+func addTunnelHandle(handle TunnelHandle) int32 {
+	tunnelHandles.Lock()
+	defer tunnelHandles.Unlock()
+	for {
+		i := tunnelHandles.next
+		if tunnelHandles.next == math.MaxInt32 {
+			tunnelHandles.next = 0
+		} else {
+			tunnelHandles.next++
+		}
+		if _, exists := tunnelHandles.handles[i]; !exists {
+			tunnelHandles.handles[i] = handle
+			return i
+		}
+	}
 }
 
-var tunnelHandles map[int32]TunnelHandle
+func getTunnelHandle(i int32) (TunnelHandle, bool) {
+	tunnelHandles.Lock()
+	defer tunnelHandles.Unlock()
+	handle, ok := tunnelHandles.handles[i]
+	return handle, ok
+}
+
+func removeTunnelHandle(i int32) (TunnelHandle, bool) {
+	tunnelHandles.Lock()
+	defer tunnelHandles.Unlock()
+	handle, ok := tunnelHandles.handles[i]
+	delete(tunnelHandles.handles, i)
+	return handle, ok
+}
 
 func init() {
 	roamingDisabled = true
-	tunnelHandles = make(map[int32]TunnelHandle)
+	tunnelHandles.handles = make(map[int32]TunnelHandle)
 	signals := make(chan os.Signal)
 	signal.Notify(signals, unix.SIGUSR2)
 	go func() {
@@ -60,17 +87,20 @@ func init() {
 }
 
 //export wgTurnOn
-func wgTurnOn(ifnameRef string, tunFd int32, settings string) int32 {
+func wgTurnOn(ifnameRef string, tunFd int32, config unsafe.Pointer, configLength int32, profile int32) int32 {
 	interfaceName := string([]byte(ifnameRef))
 
 	logger := &Logger{
-		Debug: log.New(&AndroidLogger{level: C.ANDROID_LOG_DEBUG, interfaceName: interfaceName}, "", 0),
-		Info:  log.New(&AndroidLogger{level: C.ANDROID_LOG_INFO, interfaceName: interfaceName}, "", 0),
-		Error: log.New(&AndroidLogger{level: C.ANDROID_LOG_ERROR, interfaceName: interfaceName}, "", 0),
+		Debug: log.New(&RingLogger{level: logLevelDebug, interfaceName: interfaceName}, "", 0),
+		Info:  log.New(&RingLogger{level: logLevelInfo, interfaceName: interfaceName}, "", 0),
+		Error: log.New(&RingLogger{level: logLevelError, interfaceName: interfaceName}, "", 0),
 	}
 
 	logger.Debug.Println("Debug log enabled")
 
+	// Devices size their queues when they are created, so this must come first.
+	applyDatapathProfile(profile)
+
 	tun, name, err := tun.CreateTUNFromFD(int(tunFd))
 	if err != nil {
 		unix.Close(int(tunFd))
@@ -78,26 +108,30 @@ func wgTurnOn(ifnameRef string, tunFd int32, settings string) int32 {
 		return -1
 	}
 
+	// The new interface carries the routes of every running tunnel, so all devices move to it.
 	logger.Info.Println("Attaching to interface", name)
-	device := NewDevice(tun, logger)
+	theSharedTun.replace(tun)
+	member := theSharedTun.newMember()
+	device := NewDevice(member, logger)
 
 	logger.Debug.Println("Interface has MTU", device.tun.mtu)
 
-	bufferedSettings := bufio.NewReadWriter(bufio.NewReader(strings.NewReader(settings)), bufio.NewWriter(ioutil.Discard))
-	setError := ipcSetOperation(device, bufferedSettings)
+	setError := applyBinaryConfig(device, (*[1 << 30]byte)(config)[:configLength:configLength])
 	if setError != nil {
-		unix.Close(int(tunFd))
+		device.Close()
 		logger.Error.Println(setError)
 		return -1
 	}
+	theSharedTun.add(member, device)
 
-	var uapi net.Listener;
+	var uapi net.Listener
 
-	uapiFile, err := UAPIOpen(name)
+	// Devices share the TUN, so their sockets are named after the tunnels instead.
+	uapiFile, err := UAPIOpen(interfaceName)
 	if err != nil {
 		logger.Error.Println(err)
 	} else {
-		uapi, err = UAPIListen(name, uapiFile)
+		uapi, err = UAPIListen(interfaceName, uapiFile)
 		if err != nil {
 			uapiFile.Close()
 			logger.Error.Println(err)
@@ -117,27 +151,26 @@ func wgTurnOn(ifnameRef string, tunFd int32, settings string) int32 {
 	device.Up()
 	logger.Info.Println("Device started")
 
-	var i int32
-	for i = 0; i < math.MaxInt32; i++ {
-		if _, exists := tunnelHandles[i]; !exists {
-			break
-		}
-	}
-	if i == math.MaxInt32 {
+	return addTunnelHandle(TunnelHandle{device: device, uapi: uapi})
+}
+
+//export wgReplaceTun
+func wgReplaceTun(tunFd int32) int32 {
+	tun, _, err := tun.CreateTUNFromFD(int(tunFd))
+	if err != nil {
 		unix.Close(int(tunFd))
 		return -1
 	}
-	tunnelHandles[i] = TunnelHandle{device: device, uapi: uapi}
-	return i
+	theSharedTun.replace(tun)
+	return 0
 }
 
 //export wgTurnOff
 func wgTurnOff(tunnelHandle int32) {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := removeTunnelHandle(tunnelHandle)
 	if !ok {
 		return
 	}
-	delete(tunnelHandles, tunnelHandle)
 	if handle.uapi != nil {
 		handle.uapi.Close()
 	}
@@ -146,7 +179,7 @@ func wgTurnOff(tunnelHandle int32) {
 
 //export wgGetSocketV4
 func wgGetSocketV4(tunnelHandle int32) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := getTunnelHandle(tunnelHandle)
 	if !ok {
 		return -1
 	}
@@ -170,7 +203,7 @@ func wgGetSocketV4(tunnelHandle int32) int32 {
 
 //export wgGetSocketV6
 func wgGetSocketV6(tunnelHandle int32) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := getTunnelHandle(tunnelHandle)
 	if !ok {
 		return -1
 	}
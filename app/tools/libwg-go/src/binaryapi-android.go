@@ -0,0 +1,246 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (C) 2018 WireGuard LLC. All Rights Reserved.
+ */
+
+package main
+
+import "C"
+
+import (
+	"encoding/binary"
+	"errors"
+	"net"
+	"strconv"
+	"strings"
+	"sync/atomic"
+	"time"
+	"unsafe"
+)
+
+/* Java hands configurations over and reads statistics back through direct byte buffers in these
+ * layouts, so nothing crosses JNI as a string. All integers are big-endian.
+ *
+ * Configuration:
+ *   u8 version, 32 byte private key, u16 listen port (0 if unset), u16 peer count, then per peer:
+ *   32 byte public key, u8 flags (1: preshared key, 2: endpoint),
+ *   [32 byte preshared key], [u8 address length (4 or 16), address, u16 port],
+ *   u16 persistent keepalive (0 if unset), u16 allowed IP count,
+ *   then per allowed IP: u8 address length, address, u8 prefix length.
+ *
+ * Statistics, one fixed record of statsRecordSize bytes per peer:
+ *   0: 32 byte public key, 32: u8 endpoint address length (0 if none), 33: 16 byte address,
+ *   49: u16 port, 56: s64 last handshake in milliseconds, 64: u64 rx bytes, 72: u64 tx bytes.
+ *
+ * Both are read from and written to the device and its peers directly, taking the same locks and
+ * calling the same setters as wireguard-go's ipcSetOperation and ipcGetOperation, but without
+ * producing or parsing any userspace API text.
+ */
+
+const (
+	binaryConfigVersion = 1
+	flagPresharedKey    = 1
+	flagEndpoint        = 2
+	statsRecordSize     = 80
+)
+
+var errMalformedConfig = errors.New("malformed binary configuration")
+
+type binaryReader struct {
+	data []byte
+	err  error
+}
+
+func (r *binaryReader) next(n int) []byte {
+	if r.err != nil || len(r.data) < n {
+		r.err = errMalformedConfig
+		return make([]byte, n)
+	}
+	value := r.data[:n]
+	r.data = r.data[n:]
+	return value
+}
+
+func (r *binaryReader) u8() uint8 {
+	return r.next(1)[0]
+}
+
+func (r *binaryReader) u16() uint16 {
+	return binary.BigEndian.Uint16(r.next(2))
+}
+
+/* Configure a new device, which has no peers and is not up yet. */
+func applyBinaryConfig(device *Device, config []byte) error {
+	r := &binaryReader{data: config}
+	if r.u8() != binaryConfigVersion {
+		return errMalformedConfig
+	}
+	var privateKey NoisePrivateKey
+	// Keys are copied out of the Java buffer, so don't leave them for the GC to find.
+	defer func() {
+		for i := range privateKey {
+			privateKey[i] = 0
+		}
+	}()
+	copy(privateKey[:], r.next(NoisePrivateKeySize))
+	port := r.u16()
+	if r.err != nil {
+		return r.err
+	}
+	if err := device.SetPrivateKey(privateKey); err != nil {
+		return err
+	}
+	if port != 0 {
+		device.net.Lock()
+		device.net.port = port
+		device.net.Unlock()
+		if err := device.BindUpdate(); err != nil {
+			return err
+		}
+	}
+	device.RemoveAllPeers()
+	for peers := r.u16(); peers > 0 && r.err == nil; peers-- {
+		if err := applyBinaryPeer(device, r); err != nil {
+			return err
+		}
+	}
+	return r.err
+}
+
+type binaryAllowedIP struct {
+	ip     net.IP
+	prefix uint
+}
+
+/* Read one peer and add it to the device, once all of it has been read without error. */
+func applyBinaryPeer(device *Device, r *binaryReader) error {
+	var publicKey NoisePublicKey
+	copy(publicKey[:], r.next(NoisePublicKeySize))
+	flags := r.u8()
+	var presharedKey NoiseSymmetricKey
+	defer func() {
+		for i := range presharedKey {
+			presharedKey[i] = 0
+		}
+	}()
+	if flags&flagPresharedKey != 0 {
+		copy(presharedKey[:], r.next(NoiseSymmetricKeySize))
+	}
+	var endpoint string
+	if flags&flagEndpoint != 0 {
+		ip := net.IP(r.next(int(r.u8())))
+		endpoint = (&net.UDPAddr{IP: ip, Port: int(r.u16())}).String()
+	}
+	keepalive := r.u16()
+	count := r.u16()
+	allowedIPs := make([]binaryAllowedIP, 0, count)
+	for ; count > 0 && r.err == nil; count-- {
+		ip := net.IP(r.next(int(r.u8())))
+		prefix := int(r.u8())
+		if len(ip) != net.IPv4len && len(ip) != net.IPv6len {
+			return errMalformedConfig
+		}
+		mask := net.CIDRMask(prefix, len(ip)*8)
+		if mask == nil {
+			return errMalformedConfig
+		}
+		// Masking also copies the address out of the Java buffer.
+		allowedIPs = append(allowedIPs, binaryAllowedIP{ip.Mask(mask), uint(prefix)})
+	}
+	if r.err != nil {
+		return r.err
+	}
+
+	// Like ipcSetOperation, ignore a peer that has the device's own public key.
+	device.staticIdentity.RLock()
+	isSelf := device.staticIdentity.publicKey.Equals(publicKey)
+	device.staticIdentity.RUnlock()
+	if isSelf {
+		return nil
+	}
+
+	peer := device.LookupPeer(publicKey)
+	if peer == nil {
+		var err error
+		peer, err = device.NewPeer(publicKey)
+		if err != nil {
+			return err
+		}
+	}
+	if flags&flagPresharedKey != 0 {
+		peer.handshake.mutex.Lock()
+		peer.handshake.presharedKey = presharedKey
+		peer.handshake.mutex.Unlock()
+	}
+	if endpoint != "" {
+		created, err := CreateEndpoint(endpoint)
+		if err != nil {
+			return err
+		}
+		peer.Lock()
+		peer.endpoint = created
+		peer.Unlock()
+	}
+	// The device isn't up yet, so there is no keepalive to send straight away.
+	peer.persistentKeepaliveInterval = keepalive
+	for _, allowedIP := range allowedIPs {
+		device.allowedips.Insert(allowedIP.ip, allowedIP.prefix, peer)
+	}
+	return nil
+}
+
+/* Fill in the endpoint fields of a statistics record. */
+func putEndpoint(record []byte, endpoint Endpoint) {
+	ip := endpoint.DstIP()
+	if ip4 := ip.To4(); ip4 != nil {
+		record[32] = net.IPv4len
+		copy(record[33:], ip4)
+	} else if ip16 := ip.To16(); ip16 != nil {
+		record[32] = net.IPv6len
+		copy(record[33:], ip16)
+	} else {
+		return
+	}
+	// Endpoints only expose their port as part of their "host:port" form.
+	dst := endpoint.DstToString()
+	if port, err := strconv.ParseUint(dst[strings.LastIndexByte(dst, ':')+1:], 10, 16); err == nil {
+		binary.BigEndian.PutUint16(record[49:], uint16(port))
+	}
+}
+
+/* Write one record per peer into the buffer, as many as fit, and return the number of peers. */
+//export wgGetStatistics
+func wgGetStatistics(tunnelHandle int32, buffer unsafe.Pointer, capacity int32) int32 {
+	handle, ok := getTunnelHandle(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	device := handle.device
+	out := (*[1 << 30]byte)(buffer)[:capacity:capacity]
+
+	device.peers.RLock()
+	defer device.peers.RUnlock()
+	count := 0
+	for _, peer := range device.peers.keyMap {
+		offset := count * statsRecordSize
+		count++
+		if offset+statsRecordSize > len(out) {
+			continue
+		}
+		record := out[offset : offset+statsRecordSize]
+		for i := range record {
+			record[i] = 0
+		}
+		peer.RLock()
+		copy(record[:NoisePublicKeySize], peer.handshake.remoteStatic[:])
+		if peer.endpoint != nil {
+			putEndpoint(record, peer.endpoint)
+		}
+		peer.RUnlock()
+		handshake := atomic.LoadInt64(&peer.stats.lastHandshakeNano) / int64(time.Millisecond)
+		binary.BigEndian.PutUint64(record[56:], uint64(handshake))
+		binary.BigEndian.PutUint64(record[64:], atomic.LoadUint64(&peer.stats.rxBytes))
+		binary.BigEndian.PutUint64(record[72:], atomic.LoadUint64(&peer.stats.txBytes))
+	}
+	return int32(count)
+}
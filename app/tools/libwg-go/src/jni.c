@@ -6,37 +6,54 @@
 #include <jni.h>
 #include <stdlib.h>
 #include <string.h>
+#include <unistd.h>
 
 struct go_string { const char *str; long n; };
-extern int wgTurnOn(struct go_string ifname, int tun_fd, struct go_string settings);
+extern int wgTurnOn(struct go_string ifname, int tun_fd, void *config, int config_length, int profile);
 extern void wgTurnOff(int handle);
+extern int wgReplaceTun(int tun_fd);
+extern int wgGetStatistics(int handle, void *buffer, int capacity);
 extern int wgGetSocketV4(int handle);
 extern int wgGetSocketV6(int handle);
 extern char *wgVersion();
+extern void wgSetLogLevel(int level);
+extern int wgReadLog(unsigned long long cursor, void *buffer, int capacity);
 
-JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jstring settings)
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jobject config, jint config_length, jint profile)
 {
 	const char *ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
 	size_t ifname_len = (*env)->GetStringUTFLength(env, ifname);
-	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
-	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
-	int ret = wgTurnOn((struct go_string){
-		.str = ifname_str,
-		.n = ifname_len
-	}, tun_fd, (struct go_string){
-		.str = settings_str,
-		.n = settings_len
-	});
+	void *config_ptr = (*env)->GetDirectBufferAddress(env, config);
+	int ret = -1;
+	if (config_ptr && config_length <= (*env)->GetDirectBufferCapacity(env, config))
+		ret = wgTurnOn((struct go_string){
+			.str = ifname_str,
+			.n = ifname_len
+		}, tun_fd, config_ptr, config_length, profile);
+	else
+		close(tun_fd);
 	(*env)->ReleaseStringUTFChars(env, ifname, ifname_str);
-	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
 	return ret;
 }
 
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgReplaceTun(JNIEnv *env, jclass c, jint tun_fd)
+{
+	return wgReplaceTun(tun_fd);
+}
+
 JNIEXPORT void JNICALL Java_com_wireguard_android_backend_GoBackend_wgTurnOff(JNIEnv *env, jclass c, jint handle)
 {
 	wgTurnOff(handle);
 }
 
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetStatistics(JNIEnv *env, jclass c, jint handle, jobject buffer)
+{
+	void *buffer_ptr = (*env)->GetDirectBufferAddress(env, buffer);
+	if (!buffer_ptr)
+		return -1;
+	return wgGetStatistics(handle, buffer_ptr, (*env)->GetDirectBufferCapacity(env, buffer));
+}
+
 JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgGetSocketV4(JNIEnv *env, jclass c, jint handle)
 {
 	return wgGetSocketV4(handle);
@@ -57,3 +74,19 @@ JNIEXPORT jstring JNICALL Java_com_wireguard_android_backend_GoBackend_wgVersion
 	free(version);
 	return ret;
 }
+
+JNIEXPORT void JNICALL Java_com_wireguard_android_backend_GoBackend_wgSetLogLevel(JNIEnv *env, jclass c, jint level)
+{
+	wgSetLogLevel(level);
+}
+
+JNIEXPORT jint JNICALL Java_com_wireguard_android_backend_GoBackend_wgReadLog(JNIEnv *env, jclass c, jlong cursor, jbyteArray buffer)
+{
+	jint ret;
+	jbyte *bytes = (*env)->GetByteArrayElements(env, buffer, NULL);
+	if (!bytes)
+		return 0;
+	ret = wgReadLog(cursor, bytes, (*env)->GetArrayLength(env, buffer));
+	(*env)->ReleaseByteArrayElements(env, buffer, bytes, 0);
+	return ret;
+}
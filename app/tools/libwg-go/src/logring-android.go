@@ -0,0 +1,129 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (C) 2018 WireGuard LLC. All Rights Reserved.
+ */
+
+package main
+
+import "C"
+
+import (
+	"encoding/binary"
+	"sync/atomic"
+	"time"
+	"unsafe"
+)
+
+/* Log messages are kept in a fixed ring of fixed-size slots rather than sent to logcat, so logging
+ * allocates nothing and makes no system calls. Writers claim a slot by incrementing the head, and
+ * each slot carries a sequence number that is odd while it is being written, which lets readers
+ * copy it without locks and discard it if it changed underneath them. Java reads the ring in
+ * batches when exporting logs; reading doesn't consume messages, and old ones are overwritten.
+ */
+
+const (
+	logRingSlots      = 1024
+	logMaxNameLength  = 16
+	logMaxMessageSize = 232
+	logRecordHeader   = 8 + 8 + 1 + 1 + 2
+)
+
+/* These match the priorities of android.util.Log. */
+const (
+	logLevelDebug = 3
+	logLevelInfo  = 4
+	logLevelError = 6
+)
+
+type logSlot struct {
+	sequence      uint64
+	time          int64
+	level         uint8
+	nameLength    uint8
+	messageLength uint16
+	name          [logMaxNameLength]byte
+	message       [logMaxMessageSize]byte
+}
+
+var logRing struct {
+	head     uint64
+	minLevel int32
+	slots    [logRingSlots]logSlot
+}
+
+func init() {
+	logRing.minLevel = logLevelInfo
+}
+
+type RingLogger struct {
+	level         uint8
+	interfaceName string
+}
+
+func (l *RingLogger) Write(p []byte) (int, error) {
+	if int32(l.level) < atomic.LoadInt32(&logRing.minLevel) {
+		return len(p), nil
+	}
+	ticket := atomic.AddUint64(&logRing.head, 1) - 1
+	slot := &logRing.slots[ticket%logRingSlots]
+	atomic.StoreUint64(&slot.sequence, 2*ticket+1)
+	slot.time = time.Now().UnixNano()
+	slot.level = l.level
+	slot.nameLength = uint8(copy(slot.name[:], l.interfaceName))
+	message := p
+	if len(message) > 0 && message[len(message)-1] == '\n' {
+		message = message[:len(message)-1]
+	}
+	slot.messageLength = uint16(copy(slot.message[:], message))
+	atomic.StoreUint64(&slot.sequence, 2*ticket+2)
+	return len(p), nil
+}
+
+//export wgSetLogLevel
+func wgSetLogLevel(level int32) {
+	atomic.StoreInt32(&logRing.minLevel, level)
+}
+
+/* Copy the messages from the cursor onwards into the buffer, as a series of little-endian records:
+ * u64 ticket, s64 time in nanoseconds, u8 level, u8 name length, u16 message length, name,
+ * message. Messages that have been overwritten are skipped, so the caller can tell how many were
+ * lost from the gaps between tickets. Returns the number of bytes written.
+ */
+//export wgReadLog
+func wgReadLog(cursor uint64, buffer unsafe.Pointer, capacity int32) int32 {
+	out := (*[1 << 30]byte)(buffer)[:capacity:capacity]
+	written := 0
+	head := atomic.LoadUint64(&logRing.head)
+	if head > logRingSlots && cursor < head-logRingSlots {
+		cursor = head - logRingSlots
+	}
+	for ticket := cursor; ticket < head; ticket++ {
+		slot := &logRing.slots[ticket%logRingSlots]
+		sequence := atomic.LoadUint64(&slot.sequence)
+		if sequence < 2*ticket+2 {
+			// Still being written; later messages will wait for the next read.
+			break
+		}
+		if sequence != 2*ticket+2 {
+			continue
+		}
+		copied := *slot
+		if atomic.LoadUint64(&slot.sequence) != sequence || atomic.LoadUint64(&logRing.head)-ticket > logRingSlots {
+			continue
+		}
+		size := logRecordHeader + int(copied.nameLength) + int(copied.messageLength)
+		if written+size > len(out) {
+			break
+		}
+		record := out[written : written+size]
+		binary.LittleEndian.PutUint64(record[0:], ticket)
+		binary.LittleEndian.PutUint64(record[8:], uint64(copied.time))
+		record[16] = copied.level
+		record[17] = copied.nameLength
+		binary.LittleEndian.PutUint16(record[18:], copied.messageLength)
+		copy(record[logRecordHeader:], copied.name[:copied.nameLength])
+		copy(record[logRecordHeader+int(copied.nameLength):], copied.message[:copied.messageLength])
+		written += size
+	}
+	return int32(written)
+}
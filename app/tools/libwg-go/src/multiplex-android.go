@@ -0,0 +1,239 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright (C) 2018 WireGuard LLC. All Rights Reserved.
+ */
+
+package main
+
+import (
+	"errors"
+	"git.zx2c4.com/wireguard-go/tun"
+	"golang.org/x/net/ipv4"
+	"golang.org/x/net/ipv6"
+	"net"
+	"os"
+	"sync"
+)
+
+/* Android allows only one VPN interface at a time, so every running device shares a single TUN.
+ * Packets read from it are handed to the device whose allowed IPs contain the destination address
+ * most specifically, as the kernel would route them if each device had an interface of its own,
+ * and packets from every device are written to it directly. Where devices tie, the one that came up
+ * first wins. Whenever the set of running tunnels changes, Java establishes a new interface with
+ * the combined routes and the shared TUN switches over to it.
+ */
+
+const muxQueueSize = 256
+
+type sharedTun struct {
+	mutex   sync.RWMutex
+	tun     tun.TUNDevice
+	members []*muxTun
+}
+
+type muxTun struct {
+	shared    *sharedTun
+	device    *Device
+	packets   chan []byte
+	events    chan tun.TUNEvent
+	closed    chan struct{}
+	closeOnce sync.Once
+}
+
+var theSharedTun = &sharedTun{}
+
+var muxPacketPool = sync.Pool{
+	New: func() interface{} {
+		return make([]byte, MaxMessageSize)
+	},
+}
+
+var errMuxClosed = errors.New("multiplexed TUN is closed")
+
+func (shared *sharedTun) newMember() *muxTun {
+	member := &muxTun{
+		shared:  shared,
+		packets: make(chan []byte, muxQueueSize),
+		events:  make(chan tun.TUNEvent, 5),
+		closed:  make(chan struct{}),
+	}
+	member.events <- tun.TUNEventUp
+	return member
+}
+
+/* Start routing packets to a device. This happens only once the device exists, since routing
+ * needs its allowed IPs.
+ */
+func (shared *sharedTun) add(member *muxTun, device *Device) {
+	shared.mutex.Lock()
+	member.device = device
+	shared.members = append(shared.members, member)
+	shared.mutex.Unlock()
+}
+
+func (shared *sharedTun) remove(member *muxTun) {
+	shared.mutex.Lock()
+	for i, m := range shared.members {
+		if m == member {
+			shared.members = append(shared.members[:i], shared.members[i+1:]...)
+			break
+		}
+	}
+	var old tun.TUNDevice
+	if len(shared.members) == 0 {
+		old = shared.tun
+		shared.tun = nil
+	}
+	shared.mutex.Unlock()
+	if old != nil {
+		old.Close()
+	}
+}
+
+func (shared *sharedTun) replace(device tun.TUNDevice) {
+	shared.mutex.Lock()
+	old := shared.tun
+	shared.tun = device
+	for _, member := range shared.members {
+		select {
+		case member.events <- tun.TUNEventMTUUpdate:
+		default:
+		}
+	}
+	shared.mutex.Unlock()
+	go shared.routineRead(device)
+	if old != nil {
+		old.Close()
+	}
+}
+
+func (shared *sharedTun) current() tun.TUNDevice {
+	shared.mutex.RLock()
+	defer shared.mutex.RUnlock()
+	return shared.tun
+}
+
+func (shared *sharedTun) routineRead(device tun.TUNDevice) {
+	for {
+		buffer := muxPacketPool.Get().([]byte)
+		size, err := device.Read(buffer, 0)
+		if err != nil {
+			muxPacketPool.Put(buffer)
+			// A replaced or closed TUN fails its pending read, which simply ends this routine.
+			return
+		}
+		packet := buffer[:size]
+		var destination []byte
+		switch {
+		case size >= ipv4.HeaderLen && packet[0]>>4 == ipv4.Version:
+			destination = packet[IPv4offsetDst : IPv4offsetDst+net.IPv4len]
+		case size >= ipv6.HeaderLen && packet[0]>>4 == ipv6.Version:
+			destination = packet[IPv6offsetDst : IPv6offsetDst+net.IPv6len]
+		default:
+			muxPacketPool.Put(buffer)
+			continue
+		}
+		delivered := false
+		shared.mutex.RLock()
+		var target *muxTun
+		var targetCidr uint
+		for _, member := range shared.members {
+			peer, cidr := lookupWithPrefix(&member.device.allowedips, destination)
+			if peer != nil && (target == nil || cidr > targetCidr) {
+				target, targetCidr = member, cidr
+			}
+		}
+		if target != nil {
+			select {
+			case target.packets <- packet:
+				delivered = true
+			default:
+			}
+		}
+		shared.mutex.RUnlock()
+		if !delivered {
+			muxPacketPool.Put(buffer)
+		}
+	}
+}
+
+/* Like AllowedIPs.LookupIPv4 and LookupIPv6, but also return the length of the matching prefix,
+ * so that the matches of different devices can be compared.
+ */
+func lookupWithPrefix(table *AllowedIPs, ip []byte) (*Peer, uint) {
+	table.mutex.RLock()
+	defer table.mutex.RUnlock()
+	node := table.IPv4
+	if len(ip) == net.IPv6len {
+		node = table.IPv6
+	}
+	var found *Peer
+	var cidr uint
+	size := uint(len(ip))
+	for node != nil && commonBits(node.bits, ip) >= node.cidr {
+		if node.peer != nil {
+			found, cidr = node.peer, node.cidr
+		}
+		if node.bit_at_byte == size {
+			break
+		}
+		node = node.child[node.choose(ip)]
+	}
+	return found, cidr
+}
+
+func (member *muxTun) File() *os.File {
+	device := member.shared.current()
+	if device == nil {
+		return nil
+	}
+	return device.File()
+}
+
+func (member *muxTun) Read(buff []byte, offset int) (int, error) {
+	select {
+	case packet := <-member.packets:
+		size := copy(buff[offset:], packet)
+		muxPacketPool.Put(packet[:cap(packet)])
+		return size, nil
+	case <-member.closed:
+		return 0, errMuxClosed
+	}
+}
+
+func (member *muxTun) Write(buff []byte, offset int) (int, error) {
+	device := member.shared.current()
+	if device == nil {
+		return 0, errMuxClosed
+	}
+	return device.Write(buff, offset)
+}
+
+func (member *muxTun) MTU() (int, error) {
+	device := member.shared.current()
+	if device == nil {
+		return 0, errMuxClosed
+	}
+	return device.MTU()
+}
+
+func (member *muxTun) Name() (string, error) {
+	device := member.shared.current()
+	if device == nil {
+		return "", errMuxClosed
+	}
+	return device.Name()
+}
+
+func (member *muxTun) Events() chan tun.TUNEvent {
+	return member.events
+}
+
+func (member *muxTun) Close() error {
+	member.closeOnce.Do(func() {
+		close(member.closed)
+		member.shared.remove(member)
+		close(member.events)
+	})
+	return nil
+}
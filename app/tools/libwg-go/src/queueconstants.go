@@ -5,12 +5,51 @@
 
 package main
 
-/* Reduce memory consumption for Android */
+import "runtime/debug"
 
+/* Reduce memory consumption for Android. The segment size sizes arrays, so it must stay constant.
+ * Buffers come from a sync.Pool that grows on demand and that the GC can shrink, rather than being
+ * preallocated. Queue depths and the GC target follow the profile chosen in the app's settings,
+ * and apply to devices created after it is selected.
+ */
+
+const (
+	MaxSegmentSize             = 2200
+	PreallocatedBuffersPerPool = 0
+)
+
+var (
+	QueueOutboundSize  = 1024
+	QueueInboundSize   = 1024
+	QueueHandshakeSize = 1024
+)
+
+/* These match GoBackend.PROFILE_*. */
 const (
-        QueueOutboundSize          = 1024
-        QueueInboundSize           = 1024
-        QueueHandshakeSize         = 1024
-        MaxSegmentSize             = 2200
-        PreallocatedBuffersPerPool = 4096
+	profileLowMemory = iota
+	profileBalanced
+	profileHighThroughput
 )
+
+type datapathProfile struct {
+	queueSize          int
+	handshakeQueueSize int
+	gcPercent          int
+}
+
+var datapathProfiles = map[int32]datapathProfile{
+	profileLowMemory:      {queueSize: 256, handshakeQueueSize: 128, gcPercent: 50},
+	profileBalanced:       {queueSize: 1024, handshakeQueueSize: 1024, gcPercent: 100},
+	profileHighThroughput: {queueSize: 4096, handshakeQueueSize: 1024, gcPercent: 200},
+}
+
+func applyDatapathProfile(id int32) {
+	profile, ok := datapathProfiles[id]
+	if !ok {
+		profile = datapathProfiles[profileBalanced]
+	}
+	QueueOutboundSize = profile.queueSize
+	QueueInboundSize = profile.queueSize
+	QueueHandshakeSize = profile.handshakeQueueSize
+	debug.SetGCPercent(profile.gcPercent)
+}
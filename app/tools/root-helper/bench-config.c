@@ -0,0 +1,147 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ *
+ * Measures the cost of handing a config to a tool the way root-helper did before and does now:
+ * through a temporary file in a directory, through a memfd, and through a pipe. The tool is cat,
+ * which reads the config and discards it, so the numbers are the handoff overhead of each
+ * transition rather than the time wg-quick spends configuring the interface.
+ *
+ * Usage: bench-config DIRECTORY [ITERATIONS]
+ * DIRECTORY should be on the same filesystem as the app's cache, for instance its cache/tmp.
+ */
+
+#define _GNU_SOURCE
+
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+static const char config[] =
+	"[Interface]\n"
+	"PrivateKey = eCJ7UoGJvmBJtzAVIdHMCDRRBNcBCbC8g1W+QO2lj2A=\n"
+	"Address = 10.0.0.2/32, fd00::2/128\n"
+	"DNS = 10.0.0.1\n"
+	"\n"
+	"[Peer]\n"
+	"PublicKey = d9n5x8d8ZL6O1g6N0jpUT3pVsqX9xD3hVhTvnmBGrRk=\n"
+	"AllowedIPs = 0.0.0.0/0, ::/0\n"
+	"Endpoint = 192.0.2.1:51820\n";
+
+static double now(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void run_cat(const char *path, int in_fd)
+{
+	int status;
+	pid_t pid = fork();
+	if (!pid) {
+		int null_fd = open("/dev/null", O_WRONLY);
+		dup2(null_fd, STDOUT_FILENO);
+		if (in_fd >= 0)
+			dup2(in_fd, STDIN_FILENO);
+		execlp("cat", "cat", path, NULL);
+		_exit(127);
+	}
+	waitpid(pid, &status, 0);
+}
+
+static void bench_file(const char *dir)
+{
+	char path[4096];
+	int fd;
+
+	snprintf(path, sizeof(path), "%s/wg0.conf", dir);
+	fd = open(path, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0600);
+	if (write(fd, config, sizeof(config) - 1) < 0)
+		perror("write");
+	close(fd);
+	run_cat(path, -1);
+	unlink(path);
+}
+
+static void bench_memfd(const char *link)
+{
+	int fd = syscall(__NR_memfd_create, "wireguard-config", 1 /* MFD_CLOEXEC */);
+	if (fd < 0) {
+		perror("memfd_create");
+		exit(1);
+	}
+	if (write(fd, config, sizeof(config) - 1) < 0)
+		perror("write");
+	run_cat(link, fd);
+	close(fd);
+}
+
+static void bench_pipe(const char *link)
+{
+	int fds[2];
+	int status;
+	pid_t pid;
+
+	if (pipe2(fds, O_CLOEXEC) < 0) {
+		perror("pipe2");
+		exit(1);
+	}
+	/* The config is small enough to fit in the pipe before the reader starts. */
+	if (write(fds[1], config, sizeof(config) - 1) < 0)
+		perror("write");
+	close(fds[1]);
+	pid = fork();
+	if (!pid) {
+		int null_fd = open("/dev/null", O_WRONLY);
+		dup2(null_fd, STDOUT_FILENO);
+		dup2(fds[0], STDIN_FILENO);
+		execlp("cat", "cat", link, NULL);
+		_exit(127);
+	}
+	close(fds[0]);
+	waitpid(pid, &status, 0);
+}
+
+int main(int argc, char *argv[])
+{
+	char link[4096];
+	int iterations, i;
+	double start;
+
+	if (argc < 2) {
+		fprintf(stderr, "Usage: %s DIRECTORY [ITERATIONS]\n", argv[0]);
+		return 1;
+	}
+	iterations = argc > 2 ? atoi(argv[2]) : 1000;
+	snprintf(link, sizeof(link), "%s/wg1.conf", argv[1]);
+	unlink(link);
+	if (symlink("/proc/self/fd/0", link) < 0) {
+		perror("symlink");
+		return 1;
+	}
+
+	start = now();
+	for (i = 0; i < iterations; ++i)
+		bench_file(argv[1]);
+	printf("temporary file: %8.1f us per transition\n", (now() - start) * 1e6 / iterations);
+
+	start = now();
+	for (i = 0; i < iterations; ++i)
+		bench_memfd(link);
+	printf("memfd:          %8.1f us per transition\n", (now() - start) * 1e6 / iterations);
+
+	start = now();
+	for (i = 0; i < iterations; ++i)
+		bench_pipe(link);
+	printf("pipe:           %8.1f us per transition\n", (now() - start) * 1e6 / iterations);
+
+	unlink(link);
+	return 0;
+}
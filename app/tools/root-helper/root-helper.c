@@ -0,0 +1,583 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ *
+ * Long-lived helper that performs kernel backend operations on behalf of the app. It is started as
+ * root once and then serves requests on stdin, answering on stdout, using the compact binary
+ * protocol implemented by com.wireguard.android.util.RootHelper. All integers are big-endian and
+ * all strings are a 16-bit length followed by that many bytes of UTF-8.
+ *
+ * Handshake (helper to app): u32 magic, u32 uid
+ * Request:  u8 opcode, string interface name, then
+ *   OP_SET_STATE:  u8 up, u32 length, config
+ *   OP_SET_STATES: u16 count, count changes of string interface, u8 up, u32 length, config;
+ *                  the interface name of the request itself is empty
+ * Response: s32 status, then if status is zero:
+ *   OP_VERSION:    string version
+ *   OP_ENUMERATE:  u16 count, count strings
+ *   OP_GET_STATE:  u8 up
+ *   OP_GET_STATS:  u32 count, count records of
+ *                  string interface, 32 byte public key, string endpoint,
+ *                  s64 latest handshake (seconds), s64 rx bytes, s64 tx bytes
+ *   OP_SET_STATE:  nothing
+ *   OP_SET_STATES: u16 count, count s32 statuses of the changes, made in the order given
+ *
+ * A nonzero status is an errno value, or the exit status of a failed tool. Nothing else may write
+ * to stdout, so the output of child processes is sent to stderr.
+ */
+
+#define _GNU_SOURCE
+
+#include <arpa/inet.h>
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <signal.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <sys/types.h>
+#include <sys/wait.h>
+#include <unistd.h>
+
+#define MAGIC 0x57474831
+#define NAME_MAX_LENGTH 15
+#define KEY_LENGTH 32
+
+enum {
+	OP_VERSION = 1,
+	OP_ENUMERATE = 2,
+	OP_GET_STATE = 3,
+	OP_GET_STATS = 4,
+	OP_SET_STATE = 5,
+	OP_SET_STATES = 6
+};
+
+struct state_change {
+	char name[NAME_MAX_LENGTH + 1];
+	uint8_t up;
+	uint8_t *config;
+	uint32_t config_length;
+};
+
+struct buffer {
+	uint8_t *data;
+	size_t length, capacity;
+};
+
+static void buffer_append(struct buffer *buffer, const void *data, size_t length)
+{
+	if (buffer->length + length > buffer->capacity) {
+		size_t capacity = buffer->capacity ? buffer->capacity : 256;
+		while (capacity < buffer->length + length)
+			capacity *= 2;
+		buffer->data = realloc(buffer->data, capacity);
+		if (!buffer->data) {
+			perror("realloc");
+			exit(1);
+		}
+		buffer->capacity = capacity;
+	}
+	memcpy(buffer->data + buffer->length, data, length);
+	buffer->length += length;
+}
+
+static void put_u8(struct buffer *buffer, uint8_t value)
+{
+	buffer_append(buffer, &value, 1);
+}
+
+static void put_u16(struct buffer *buffer, uint16_t value)
+{
+	value = htons(value);
+	buffer_append(buffer, &value, 2);
+}
+
+static void put_u32(struct buffer *buffer, uint32_t value)
+{
+	value = htonl(value);
+	buffer_append(buffer, &value, 4);
+}
+
+static void put_u64(struct buffer *buffer, uint64_t value)
+{
+	put_u32(buffer, value >> 32);
+	put_u32(buffer, value & 0xffffffff);
+}
+
+static void put_string(struct buffer *buffer, const char *string, size_t length)
+{
+	if (length > UINT16_MAX)
+		length = UINT16_MAX;
+	put_u16(buffer, length);
+	buffer_append(buffer, string, length);
+}
+
+static bool read_full(void *data, size_t length)
+{
+	uint8_t *p = data;
+	while (length) {
+		ssize_t ret = read(STDIN_FILENO, p, length);
+		if (ret < 0 && errno == EINTR)
+			continue;
+		if (ret <= 0)
+			return false;
+		p += ret;
+		length -= ret;
+	}
+	return true;
+}
+
+static bool write_fd(int fd, const void *data, size_t length)
+{
+	const uint8_t *p = data;
+	while (length) {
+		ssize_t ret = write(fd, p, length);
+		if (ret < 0 && errno == EINTR)
+			continue;
+		if (ret <= 0)
+			return false;
+		p += ret;
+		length -= ret;
+	}
+	return true;
+}
+
+static bool write_full(const void *data, size_t length)
+{
+	return write_fd(STDOUT_FILENO, data, length);
+}
+
+static bool is_valid_name(const char *name)
+{
+	size_t length = strlen(name);
+	if (!length || length > NAME_MAX_LENGTH)
+		return false;
+	for (const char *p = name; *p; ++p) {
+		if (!((*p >= 'a' && *p <= 'z') || (*p >= 'A' && *p <= 'Z') || (*p >= '0' && *p <= '9') ||
+		      *p == '_' || *p == '=' || *p == '+' || *p == '.' || *p == '-'))
+			return false;
+	}
+	return true;
+}
+
+static bool is_wireguard_interface(const char *name)
+{
+	char path[64 + NAME_MAX_LENGTH], *line = NULL;
+	size_t line_length = 0;
+	bool ret = false;
+	FILE *file;
+
+	if (!is_valid_name(name))
+		return false;
+	snprintf(path, sizeof(path), "/sys/class/net/%s/uevent", name);
+	file = fopen(path, "r");
+	if (!file)
+		return false;
+	while (getline(&line, &line_length, file) >= 0) {
+		if (!strcmp(line, "DEVTYPE=wireguard\n")) {
+			ret = true;
+			break;
+		}
+	}
+	free(line);
+	fclose(file);
+	return ret;
+}
+
+/* Run a tool with its stdout connected to out_fd, or to stderr if out_fd is negative. */
+/* The child's stdin is in_fd if given, and never the request stream. */
+static pid_t spawn(char *const argv[], int in_fd, int out_fd)
+{
+	pid_t pid = fork();
+	if (pid < 0)
+		return -1;
+	if (!pid) {
+		dup2(out_fd >= 0 ? out_fd : STDERR_FILENO, STDOUT_FILENO);
+		if (out_fd >= 0)
+			close(out_fd);
+		if (in_fd >= 0) {
+			dup2(in_fd, STDIN_FILENO);
+			close(in_fd);
+		} else {
+			close(STDIN_FILENO);
+		}
+		execvp(argv[0], argv);
+		perror(argv[0]);
+		_exit(127);
+	}
+	return pid;
+}
+
+static int wait_status(pid_t pid)
+{
+	int status;
+	while (waitpid(pid, &status, 0) < 0) {
+		if (errno != EINTR)
+			return errno;
+	}
+	if (WIFEXITED(status))
+		return WEXITSTATUS(status);
+	return EINTR;
+}
+
+static int decode_base64_key(uint8_t key[static KEY_LENGTH], const char *base64, size_t length)
+{
+	uint32_t accumulator = 0;
+	size_t bits = 0, i, out = 0;
+
+	if (length != 44 || base64[43] != '=')
+		return EINVAL;
+	for (i = 0; i < 43; ++i) {
+		char c = base64[i];
+		uint32_t value;
+		if (c >= 'A' && c <= 'Z')
+			value = c - 'A';
+		else if (c >= 'a' && c <= 'z')
+			value = c - 'a' + 26;
+		else if (c >= '0' && c <= '9')
+			value = c - '0' + 52;
+		else if (c == '+')
+			value = 62;
+		else if (c == '/')
+			value = 63;
+		else
+			return EINVAL;
+		accumulator = (accumulator << 6) | value;
+		bits += 6;
+		if (bits >= 8) {
+			bits -= 8;
+			if (out < KEY_LENGTH)
+				key[out++] = accumulator >> bits;
+			accumulator &= (1U << bits) - 1;
+		}
+	}
+	return out == KEY_LENGTH ? 0 : EINVAL;
+}
+
+static int op_version(struct buffer *response)
+{
+	char version[64];
+	ssize_t length;
+	int fd = open("/sys/module/wireguard/version", O_RDONLY | O_CLOEXEC);
+
+	if (fd < 0)
+		return errno;
+	length = read(fd, version, sizeof(version));
+	close(fd);
+	if (length < 0)
+		return errno;
+	while (length && (version[length - 1] == '\n' || version[length - 1] == ' '))
+		--length;
+	put_string(response, version, length);
+	return 0;
+}
+
+static int op_enumerate(struct buffer *response)
+{
+	struct dirent *entry;
+	struct buffer names = { 0 };
+	uint16_t count = 0;
+	DIR *dir = opendir("/sys/class/net");
+
+	if (!dir)
+		return errno;
+	while ((entry = readdir(dir))) {
+		if (entry->d_name[0] == '.' || !is_wireguard_interface(entry->d_name))
+			continue;
+		put_string(&names, entry->d_name, strlen(entry->d_name));
+		++count;
+	}
+	closedir(dir);
+	put_u16(response, count);
+	if (names.length)
+		buffer_append(response, names.data, names.length);
+	free(names.data);
+	return 0;
+}
+
+static int op_get_state(struct buffer *response, const char *name)
+{
+	if (!is_valid_name(name))
+		return EINVAL;
+	put_u8(response, is_wireguard_interface(name));
+	return 0;
+}
+
+/* Parse the output of "wg show all dump", keeping peers of the named interface, or of all
+ * interfaces if the name is empty. Peer lines are the ones with nine tab-separated fields.
+ */
+static int op_get_stats(struct buffer *response, const char *name)
+{
+	char *argv[] = { "wg", "show", "all", "dump", NULL };
+	struct buffer records = { 0 };
+	uint32_t count = 0;
+	char *line = NULL;
+	size_t line_length = 0;
+	int pipe_fds[2], ret;
+	pid_t pid;
+	FILE *output;
+
+	if (pipe(pipe_fds) < 0)
+		return errno;
+	pid = spawn(argv, -1, pipe_fds[1]);
+	close(pipe_fds[1]);
+	if (pid < 0) {
+		ret = errno;
+		close(pipe_fds[0]);
+		return ret;
+	}
+	output = fdopen(pipe_fds[0], "r");
+	if (!output) {
+		ret = errno;
+		close(pipe_fds[0]);
+		wait_status(pid);
+		return ret;
+	}
+	while (getline(&line, &line_length, output) >= 0) {
+		char *fields[9], *p = line;
+		uint8_t key[KEY_LENGTH];
+		size_t field_count = 0;
+
+		line[strcspn(line, "\n")] = '\0';
+		while (field_count < 9) {
+			fields[field_count++] = p;
+			p = strchr(p, '\t');
+			if (!p)
+				break;
+			*p++ = '\0';
+		}
+		if (field_count != 9 || p)
+			continue;
+		if (*name && strcmp(fields[0], name))
+			continue;
+		if (decode_base64_key(key, fields[1], strlen(fields[1])))
+			continue;
+		put_string(&records, fields[0], strlen(fields[0]));
+		buffer_append(&records, key, KEY_LENGTH);
+		if (!strcmp(fields[3], "(none)"))
+			put_string(&records, "", 0);
+		else
+			put_string(&records, fields[3], strlen(fields[3]));
+		put_u64(&records, strtoull(fields[5], NULL, 10));
+		put_u64(&records, strtoull(fields[6], NULL, 10));
+		put_u64(&records, strtoull(fields[7], NULL, 10));
+		++count;
+	}
+	free(line);
+	fclose(output);
+	ret = wait_status(pid);
+	if (!ret) {
+		put_u32(response, count);
+		if (records.length)
+			buffer_append(response, records.data, records.length);
+	}
+	free(records.data);
+	return ret;
+}
+
+/* Get a path that names the config for wg-quick, which derives the interface name from the file
+ * name. It is a symlink to the stdin of whoever opens it, so the config itself is handed to
+ * wg-quick as its stdin and never written to storage. The link holds no secrets and is kept for
+ * the next transition.
+ */
+static int config_link(char *path, size_t capacity, const char *name)
+{
+	const char *tmpdir = getenv("TMPDIR");
+
+	if (!tmpdir)
+		tmpdir = "/data/local/tmp";
+	snprintf(path, capacity, "%s/configs", tmpdir);
+	if (mkdir(path, 0700) < 0 && errno != EEXIST)
+		return errno;
+	snprintf(path, capacity, "%s/configs/%s.conf", tmpdir, name);
+	if (symlink("/proc/self/fd/0", path) < 0 && errno != EEXIST)
+		return errno;
+	return 0;
+}
+
+static int op_set_state(const char *name, bool up, const uint8_t *config, size_t config_length)
+{
+	char path[4096];
+	char *argv[] = { "wg-quick", up ? "up" : "down", path, NULL };
+	int fd = -1, pipe_fds[2], ret;
+	pid_t pid;
+
+	if (!is_valid_name(name))
+		return EINVAL;
+	if (up && access("/sys/module/wireguard/version", F_OK) < 0)
+		return errno;
+	ret = config_link(path, sizeof(path), name);
+	if (ret)
+		return ret;
+#ifdef __NR_memfd_create
+	/* A memfd can be reopened through /proc at offset zero, however many times it is read. */
+	fd = syscall(__NR_memfd_create, "wireguard-config", 1 /* MFD_CLOEXEC */);
+#endif
+	if (fd >= 0) {
+		fchmod(fd, 0600);
+		if (!write_fd(fd, config, config_length)) {
+			ret = errno;
+			close(fd);
+			return ret;
+		}
+		pid = spawn(argv, fd, -1);
+		ret = pid < 0 ? errno : 0;
+		close(fd);
+		return ret ? ret : wait_status(pid);
+	}
+	/* Kernels older than 3.17 lack memfd, so stream the config through a pipe instead. This relies
+	 * on wg-quick reading its config exactly once, which it does.
+	 */
+	if (pipe2(pipe_fds, O_CLOEXEC) < 0)
+		return errno;
+	pid = spawn(argv, pipe_fds[0], -1);
+	ret = pid < 0 ? errno : 0;
+	close(pipe_fds[0]);
+	/* A failed write means wg-quick exited without reading; its exit status says why. */
+	if (!ret)
+		write_fd(pipe_fds[1], config, config_length);
+	close(pipe_fds[1]);
+	return ret ? ret : wait_status(pid);
+}
+
+static int op_set_states(struct buffer *response, const struct state_change *changes, uint16_t count)
+{
+	put_u16(response, count);
+	for (uint16_t i = 0; i < count; ++i)
+		put_u32(response, op_set_state(changes[i].name, changes[i].up, changes[i].config, changes[i].config_length));
+	return 0;
+}
+
+static bool read_string(char *string, size_t capacity)
+{
+	uint16_t length;
+
+	if (!read_full(&length, 2))
+		return false;
+	length = ntohs(length);
+	if (length >= capacity) {
+		/* Too long to be valid; consume it and pass on an invalid name. */
+		char discard[256];
+		while (length) {
+			size_t chunk = length < sizeof(discard) ? length : sizeof(discard);
+			if (!read_full(discard, chunk))
+				return false;
+			length -= chunk;
+		}
+		strcpy(string, "/");
+		return true;
+	}
+	if (!read_full(string, length))
+		return false;
+	string[length] = '\0';
+	return true;
+}
+
+static bool read_state_change(struct state_change *change)
+{
+	if (!read_full(&change->up, 1) || !read_full(&change->config_length, 4))
+		return false;
+	change->config_length = ntohl(change->config_length);
+	change->config = malloc(change->config_length ? change->config_length : 1);
+	if (!change->config)
+		return false;
+	if (!read_full(change->config, change->config_length)) {
+		free(change->config);
+		change->config = NULL;
+		return false;
+	}
+	return true;
+}
+
+static void free_state_changes(struct state_change *changes, uint16_t count)
+{
+	for (uint16_t i = 0; i < count; ++i)
+		free(changes[i].config);
+	free(changes);
+}
+
+int main(void)
+{
+	struct buffer response = { 0 };
+	uint32_t handshake[2] = { htonl(MAGIC), htonl(getuid()) };
+
+	/* Writing a config to a tool that has already exited must fail rather than kill the helper. */
+	signal(SIGPIPE, SIG_IGN);
+	if (!write_full(handshake, sizeof(handshake)))
+		return 1;
+	for (;;) {
+		char name[NAME_MAX_LENGTH + 1];
+		struct state_change *changes = NULL;
+		uint16_t count = 0, read_count = 0;
+		uint8_t opcode;
+		int status;
+
+		if (!read_full(&opcode, 1) || !read_string(name, sizeof(name)))
+			break;
+		/* Every change in a request is read before any of them is made. */
+		if (opcode == OP_SET_STATE || opcode == OP_SET_STATES) {
+			count = 1;
+			if (opcode == OP_SET_STATES) {
+				if (!read_full(&count, 2))
+					break;
+				count = ntohs(count);
+			}
+			changes = calloc(count ? count : 1, sizeof(*changes));
+			if (!changes)
+				break;
+			if (opcode == OP_SET_STATE)
+				strcpy(changes[0].name, name);
+			while (read_count < count) {
+				if (opcode == OP_SET_STATES &&
+				    !read_string(changes[read_count].name, sizeof(changes[read_count].name)))
+					break;
+				if (!read_state_change(&changes[read_count]))
+					break;
+				++read_count;
+			}
+			if (read_count < count) {
+				free_state_changes(changes, read_count);
+				break;
+			}
+		}
+		/* The status is filled in once it is known. */
+		response.length = 0;
+		put_u32(&response, 0);
+		switch (opcode) {
+		case OP_VERSION:
+			status = op_version(&response);
+			break;
+		case OP_ENUMERATE:
+			status = op_enumerate(&response);
+			break;
+		case OP_GET_STATE:
+			status = op_get_state(&response, name);
+			break;
+		case OP_GET_STATS:
+			status = op_get_stats(&response, name);
+			break;
+		case OP_SET_STATE:
+			status = op_set_state(name, changes[0].up, changes[0].config, changes[0].config_length);
+			break;
+		case OP_SET_STATES:
+			status = op_set_states(&response, changes, count);
+			break;
+		default:
+			status = ENOSYS;
+			break;
+		}
+		free_state_changes(changes, count);
+		if (status)
+			response.length = 4;
+		*(uint32_t *)response.data = htonl(status);
+		if (!write_full(response.data, response.length))
+			break;
+	}
+	free(response.data);
+	return 0;
+}
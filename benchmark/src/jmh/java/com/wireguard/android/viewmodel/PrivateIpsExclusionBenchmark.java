@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.android.viewmodel;
+
+import com.wireguard.config.Attribute;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The AllowedIPs rewriting done each time the "exclude private IPs" switch is flipped or the
+ * interface's DNS servers are edited, for lists with a number of networks besides the wildcard.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+public class PrivateIpsExclusionBenchmark {
+    @Param({"0", "100", "1000", "10000"})
+    public int extraNetworks;
+    private List<String> dnsRoutes;
+    private String excluding;
+    private List<String> newDnsRoutes;
+    private String wildcard;
+
+    @Benchmark
+    public boolean calculateState() {
+        final Collection<String> networks = PrivateIpsExclusion.getAllowedIpsSet(wildcard);
+        return networks.containsAll(PrivateIpsExclusion.IPV4_WILDCARD) ||
+                networks.containsAll(PrivateIpsExclusion.IPV4_PUBLIC_NETWORKS);
+    }
+
+    @Benchmark
+    public String excludePrivateIps() {
+        return PrivateIpsExclusion.setExcludingPrivateIps(wildcard, true, dnsRoutes);
+    }
+
+    @Benchmark
+    public String includePrivateIps() {
+        return PrivateIpsExclusion.setExcludingPrivateIps(excluding, false, dnsRoutes);
+    }
+
+    @Setup
+    public void setup() {
+        final List<String> networks = new ArrayList<>(extraNetworks + 2);
+        networks.add("0.0.0.0/0");
+        networks.add("::/0");
+        for (int i = 0; i < extraNetworks; ++i)
+            networks.add("fd00:" + Integer.toHexString(i) + "::/32");
+        wildcard = Attribute.join(networks);
+        dnsRoutes = PrivateIpsExclusion.getDnsRoutes("10.0.0.2, 10.0.0.3");
+        newDnsRoutes = PrivateIpsExclusion.getDnsRoutes("10.0.0.4");
+        excluding = PrivateIpsExclusion.setExcludingPrivateIps(wildcard, true, dnsRoutes);
+    }
+
+    @Benchmark
+    public String updateDnsRoutes() {
+        return PrivateIpsExclusion.updateDnsRoutes(excluding, dnsRoutes, newDnsRoutes);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.ParseException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Parsing and serializing whole configurations, from a single peer up to far more than anyone
+ * should import by hand.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+public class ConfigBenchmark {
+    @Param({"1", "100", "1000", "10000"})
+    public int peers;
+    private Config config;
+    private String text;
+
+    @Benchmark
+    public Config parse() throws IOException, ParseException {
+        return Config.parse(new BufferedReader(new StringReader(text)));
+    }
+
+    @Setup
+    public void setup() throws IOException, ParseException {
+        text = ConfigGenerator.generate(peers);
+        config = Config.parse(new BufferedReader(new StringReader(text)));
+    }
+
+    @Benchmark
+    public String toWgQuickString() {
+        return config.toWgQuickString();
+    }
+
+    @Benchmark
+    public String toWgUserspaceString() {
+        return config.toWgUserspaceString();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.crypto.Key;
+
+import java.util.Random;
+
+/**
+ * Generates wg-quick configurations with a given number of peers. The output depends only on the
+ * peer count, so every run of a benchmark parses the same text.
+ */
+
+final class ConfigGenerator {
+    private ConfigGenerator() {
+        // Prevent instantiation.
+    }
+
+    private static String randomKey(final Random random) {
+        final byte[] bytes = new byte[Key.Format.BINARY.getLength()];
+        random.nextBytes(bytes);
+        return Key.fromBytes(bytes).toBase64();
+    }
+
+    /**
+     * Each peer has a public key, a preshared key, an endpoint, a keepalive and two allowed IPs, one
+     * of each family. Endpoints are numeric, because serializing for the userspace API resolves
+     * hostnames, and the benchmarks must not depend on DNS.
+     */
+    static String generate(final int peers) {
+        final Random random = new Random(peers);
+        final StringBuilder sb = new StringBuilder(200 + peers * 250);
+        sb.append("[Interface]\n");
+        sb.append("PrivateKey = ").append(randomKey(random)).append('\n');
+        sb.append("Address = 10.0.0.1/8, fd00::1/64\n");
+        sb.append("DNS = 10.0.0.2, fd00::2\n");
+        sb.append("ListenPort = 51820\n");
+        for (int i = 0; i < peers; ++i) {
+            final int high = (i >> 8) & 0xff;
+            final int low = i & 0xff;
+            sb.append("\n[Peer]\n");
+            sb.append("PublicKey = ").append(randomKey(random)).append('\n');
+            sb.append("PresharedKey = ").append(randomKey(random)).append('\n');
+            sb.append("AllowedIPs = 10.").append(i >> 16).append('.').append(high).append('.')
+                    .append(low).append("/32, fd00::").append(Integer.toHexString(i + 16)).append("/128\n");
+            if (i % 2 == 0)
+                sb.append("Endpoint = 192.0.").append(high).append('.').append(low).append(":51820\n");
+            else
+                sb.append("Endpoint = [2001:db8::").append(Integer.toHexString(i)).append("]:51820\n");
+            sb.append("PersistentKeepalive = 25\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.crypto.Curve25519;
+import com.wireguard.crypto.Key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Key encodings, which run several times per peer whenever a configuration is parsed or written,
+ * and the scalar multiplication used to derive public keys.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+public class KeyBenchmark {
+    private final byte[] result = new byte[Key.Format.BINARY.getLength()];
+    private String base64;
+    private String hex;
+    private Key key;
+    private byte[] privateKey;
+    private byte[] publicKey;
+
+    @Benchmark
+    public byte[] curve25519Eval() {
+        Curve25519.eval(result, 0, privateKey, publicKey);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] curve25519EvalBasePoint() {
+        Curve25519.eval(result, 0, privateKey, null);
+        return result;
+    }
+
+    @Benchmark
+    public Key fromBase64() {
+        return Key.fromBase64(base64);
+    }
+
+    @Benchmark
+    public Key fromHex() {
+        return Key.fromHex(hex);
+    }
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        privateKey = new byte[Key.Format.BINARY.getLength()];
+        publicKey = new byte[Key.Format.BINARY.getLength()];
+        random.nextBytes(privateKey);
+        random.nextBytes(publicKey);
+        key = Key.fromBytes(publicKey);
+        base64 = key.toBase64();
+        hex = key.toHex();
+    }
+
+    @Benchmark
+    public String toBase64() {
+        return key.toBase64();
+    }
+
+    @Benchmark
+    public String toHex() {
+        return key.toHex();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.config.InetEndpoint;
+import com.wireguard.config.InetNetwork;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of the networks and endpoints found in every section of a configuration. Hostname
+ * endpoints are only parsed, never resolved, so no benchmark touches the network.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+public class NetworkParsingBenchmark {
+    @Benchmark
+    public InetEndpoint parseEndpoint(final Endpoints endpoints) {
+        return InetEndpoint.parse(endpoints.endpoint);
+    }
+
+    @Benchmark
+    public InetNetwork parseNetwork(final Networks networks) {
+        return InetNetwork.parse(networks.network);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Endpoints {
+        @Param({"192.0.2.1:51820", "[2001:db8::1]:51820", "peer.example.com:51820"})
+        public String endpoint;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Networks {
+        @Param({"10.11.12.13/32", "2001:db8:1234::/48"})
+        public String network;
+    }
+}
@@ -5,8 +5,6 @@
 
 package com.wireguard.config;
 
-import android.support.annotation.Nullable;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,6 +17,8 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * Represents the contents of a wg-quick configuration file, made up of one or more "Interface"
  * sections (combined together), and zero or more "Peer" sections (treated individually).
@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2017-2018 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.wireguard.config;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Utility methods for creating instances of {@link InetAddress}.
+ */
+public final class InetAddresses {
+    private static final int IPV4_LENGTH = 4;
+    private static final int IPV6_LENGTH = 16;
+
+    private InetAddresses() {
+        // Prevent instantiation.
+    }
+
+    private static int hexDigit(final char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Parses a numeric IPv4 or IPv6 address without performing any DNS lookups. This accepts the
+     * same forms as {@code inet_pton()}, as Android's {@code InetAddress.parseNumericAddress()}
+     * does, and IPv6 addresses may also be enclosed in brackets.
+     *
+     * @param address a string representing the IP address
+     * @return an instance of {@link Inet4Address} or {@link Inet6Address}, as appropriate
+     */
+    public static InetAddress parse(final String address) {
+        if (address.isEmpty())
+            throw new IllegalArgumentException("Empty address");
+        final byte[] bytes;
+        if (address.indexOf(':') >= 0) {
+            bytes = new byte[IPV6_LENGTH];
+            final boolean bracketed = address.charAt(0) == '[' && address.charAt(address.length() - 1) == ']';
+            final int start = bracketed ? 1 : 0;
+            final int end = bracketed ? address.length() - 1 : address.length();
+            if (!parseIpv6(address, start, end, bytes))
+                throw new IllegalArgumentException("Invalid IPv6 address: " + address);
+        } else {
+            bytes = new byte[IPV4_LENGTH];
+            if (!parseIpv4(address, 0, address.length(), bytes, 0))
+                throw new IllegalArgumentException("Invalid IPv4 address: " + address);
+        }
+        try {
+            // Given raw bytes, this never does a DNS lookup.
+            return InetAddress.getByAddress(bytes);
+        } catch (final UnknownHostException e) {
+            // This can only happen for an array of the wrong length.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Parse a dotted quad, with no leading zeros, into four bytes starting at the given offset.
+     */
+    private static boolean parseIpv4(final CharSequence address, final int start, final int end,
+                                     final byte[] bytes, final int offset) {
+        int i = start;
+        for (int octet = 0; octet < IPV4_LENGTH; ++octet) {
+            if (octet > 0) {
+                if (i >= end || address.charAt(i) != '.')
+                    return false;
+                ++i;
+            }
+            final int octetStart = i;
+            int value = 0;
+            while (i < end && address.charAt(i) >= '0' && address.charAt(i) <= '9') {
+                if (i > octetStart && value == 0)
+                    return false;
+                value = value * 10 + address.charAt(i) - '0';
+                if (value > 255)
+                    return false;
+                ++i;
+            }
+            if (i == octetStart)
+                return false;
+            bytes[offset + octet] = (byte) value;
+        }
+        return i == end;
+    }
+
+    /*
+     * Parse up to eight colon-separated groups of one to four hex digits, with at most one "::"
+     * standing for one or more zero groups, and optionally a dotted quad in place of the last two.
+     */
+    private static boolean parseIpv6(final CharSequence address, final int start, final int end,
+                                     final byte[] bytes) {
+        int i = start;
+        int index = 0;
+        int gap = -1;
+        if (end - i >= 2 && address.charAt(i) == ':' && address.charAt(i + 1) == ':') {
+            gap = 0;
+            i += 2;
+            if (i == end)
+                return true;
+        }
+        while (true) {
+            final int groupStart = i;
+            int value = 0;
+            int digit;
+            while (i < end && i - groupStart < 4 && (digit = hexDigit(address.charAt(i))) >= 0) {
+                value = (value << 4) | digit;
+                ++i;
+            }
+            if (i == groupStart)
+                return false;
+            if (i < end && address.charAt(i) == '.') {
+                if (index > IPV6_LENGTH - IPV4_LENGTH || !parseIpv4(address, groupStart, end, bytes, index))
+                    return false;
+                index += IPV4_LENGTH;
+                break;
+            }
+            if (index > IPV6_LENGTH - 2)
+                return false;
+            bytes[index++] = (byte) (value >> 8);
+            bytes[index++] = (byte) value;
+            if (i == end)
+                break;
+            if (address.charAt(i) != ':' || ++i == end)
+                return false;
+            if (address.charAt(i) == ':') {
+                if (gap >= 0)
+                    return false;
+                gap = index;
+                if (++i == end)
+                    break;
+            }
+        }
+        if (gap < 0)
+            return index == IPV6_LENGTH;
+        if (index == IPV6_LENGTH)
+            return false;
+        // Move the groups after the gap to the end, and fill the gap with zeros.
+        final int tail = index - gap;
+        System.arraycopy(bytes, gap, bytes, IPV6_LENGTH - tail, tail);
+        for (int j = gap; j < IPV6_LENGTH - tail; ++j)
+            bytes[j] = 0;
+        return true;
+    }
+}
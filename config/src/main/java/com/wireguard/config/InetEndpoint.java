@@ -5,8 +5,6 @@
 
 package com.wireguard.config;
 
-import android.support.annotation.Nullable;
-
 import org.threeten.bp.Duration;
 import org.threeten.bp.Instant;
 
@@ -19,6 +17,8 @@ import java.util.regex.Pattern;
 
 import java9.util.Optional;
 
+import javax.annotation.Nullable;
+
 
 /**
  * An external endpoint (host and port) used to connect to a WireGuard {@link Peer}.
@@ -5,8 +5,6 @@
 
 package com.wireguard.config;
 
-import android.support.annotation.Nullable;
-
 import com.wireguard.crypto.Key;
 import com.wireguard.crypto.KeyPair;
 
@@ -25,6 +23,8 @@ import java9.util.stream.Collectors;
 import java9.util.stream.Stream;
 import java9.util.stream.StreamSupport;
 
+import javax.annotation.Nullable;
+
 /**
  * Represents the configuration for a WireGuard interface (an [Interface] block). Interfaces must
  * have a private key (used to initialize a {@code KeyPair}), and may optionally have several other
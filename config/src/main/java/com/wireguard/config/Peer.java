@@ -5,8 +5,6 @@
 
 package com.wireguard.config;
 
-import android.support.annotation.Nullable;
-
 import com.wireguard.crypto.Key;
 
 import java.util.Collection;
@@ -21,6 +19,8 @@ import java9.util.Optional;
 import java9.util.stream.Collectors;
 import java9.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
 /**
  * Represents the configuration for a WireGuard peer (a [Peer] block). Peers must have a public key,
  * and may optionally have several other attributes.
@@ -6,10 +6,10 @@
 
 package com.wireguard.crypto;
 
-import android.support.annotation.Nullable;
-
 import java.util.Arrays;
 
+import javax.annotation.Nullable;
+
 /**
  * Implementation of the Curve25519 elliptic curve algorithm.
  * <p>